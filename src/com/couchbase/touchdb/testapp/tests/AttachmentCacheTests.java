@@ -0,0 +1,99 @@
+package com.couchbase.touchdb.testapp.tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.rti.rcd.ict.lgug.utils.AttachmentCache;
+
+import android.test.InstrumentationTestCase;
+
+import com.couchbase.touchdb.TDServer;
+import com.couchbase.touchdb.TDStatus;
+import com.couchbase.touchdb.router.TDURLStreamHandlerFactory;
+import com.couchbase.touchdb.support.Base64;
+import com.couchbase.touchdb.support.FileDirUtils;
+
+public class AttachmentCacheTests extends InstrumentationTestCase {
+
+    public static final String TAG = "AttachmentCacheTests";
+
+    private File dir;
+    private TDServer server;
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = new File(getInstrumentation().getContext().getFilesDir(), "attachment-cache-tests");
+        FileDirUtils.deleteRecursive(dir);
+        dir.mkdirs();
+        TDURLStreamHandlerFactory.registerSelfIgnoreError();
+        server = new TDServer(dir.getAbsolutePath());
+        Router.send(server, "PUT", "/app", TDStatus.CREATED, null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.close();
+        FileDirUtils.deleteRecursive(dir);
+    }
+
+    public void testServesFromMemoryUntilDesignDocChanges() throws IOException {
+        String rev = putDesignDoc(null, "<p>v1</p>");
+        AttachmentCache cache = new AttachmentCache(server, AttachmentCache.DEFAULT_MAX_BYTES);
+
+        AttachmentCache.Entry first = cache.get("app", "_design/app", "index.html");
+        assertEquals("<p>v1</p>", new String(first.getBody(), "UTF-8"));
+        assertEquals("text/html", first.getContentType());
+        AttachmentCache.Entry again = cache.get("app", "_design/app", "index.html");
+        assertSame(first, again);
+        assertEquals(1, cache.getHitCount());
+
+        putDesignDoc(rev, "<p>v2</p>");
+        AttachmentCache.Entry updated = cache.get("app", "_design/app", "index.html");
+        assertEquals("<p>v2</p>", new String(updated.getBody(), "UTF-8"));
+        assertFalse(updated.getEtag().equals(first.getEtag()));
+        assertEquals(1, cache.getHitCount());
+    }
+
+    public void testIgnoresOtherDocuments() throws IOException {
+        Map<String, Object> doc = new HashMap<String, Object>();
+        doc.put("_attachments", attachments("<p>data</p>"));
+        Router.sendBody(server, "PUT", "/app/doc", doc, TDStatus.CREATED, null);
+        AttachmentCache cache = new AttachmentCache(server, AttachmentCache.DEFAULT_MAX_BYTES);
+
+        assertNull(cache.get("app", "doc", "index.html"));
+        assertNull(cache.get("app", "_design/missing", "index.html"));
+    }
+
+    public void testParsesAttachmentPaths() {
+        String[] parsed = AttachmentCache.parseAttachmentPath("/app/_design/app/css/site%20main.css");
+        assertEquals("app", parsed[0]);
+        assertEquals("_design/app", parsed[1]);
+        assertEquals("css/site main.css", parsed[2]);
+        assertNull(AttachmentCache.parseAttachmentPath("/app/_design/app/_view/all"));
+        assertNull(AttachmentCache.parseAttachmentPath("/app/doc/index.html"));
+    }
+
+    /**
+     * @return the new revision ID
+     */
+    private String putDesignDoc(String rev, String html) throws IOException {
+        Map<String, Object> doc = new HashMap<String, Object>();
+        if (rev != null) {
+            doc.put("_rev", rev);
+        }
+        doc.put("_attachments", attachments(html));
+        Map<?, ?> result = (Map<?, ?>) Router.sendBody(server, "PUT", "/app/_design/app", doc, TDStatus.CREATED, null);
+        return (String) result.get("rev");
+    }
+
+    private static Map<String, Object> attachments(String html) throws IOException {
+        Map<String, Object> attachment = new HashMap<String, Object>();
+        attachment.put("content_type", "text/html");
+        attachment.put("data", Base64.encodeBytes(html.getBytes("UTF-8")));
+        Map<String, Object> attachments = new HashMap<String, Object>();
+        attachments.put("index.html", attachment);
+        return attachments;
+    }
+}
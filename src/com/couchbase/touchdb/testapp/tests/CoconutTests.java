@@ -4,9 +4,6 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.Date;
-import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -137,11 +134,9 @@ public class CoconutTests extends InstrumentationTestCase{
 		}
     	
     	String path = "/coconut-sample/_design/coconut/index.html";
-    	// setup clock
-        Calendar cal = new GregorianCalendar();
-        Date starttime = cal.getTime();
-        long long_starttime = starttime.getTime();
-    	Log.v(TAG, "Start page view" + starttime.toString());
+    	// System.nanoTime is monotonic; the wall clock can jump mid-measurement.
+    	long start = System.nanoTime();
+    	Log.v(TAG, "Start page view");
     	conn = Router.sendRequest(server, "GET", path, null, null);
     	path = "/coconut-sample/_design/coconut/css/1140.css";
     	conn = Router.sendRequest(server, "GET", path, null, null);
@@ -149,12 +144,9 @@ public class CoconutTests extends InstrumentationTestCase{
     	conn = Router.sendRequest(server, "GET", path, null, null);
     	//Log.v(TAG, String.format("%s --> %d", path, conn.getResponseCode()));
     	// Stop clock and calculate time elapsed
-        Calendar cal2 = new GregorianCalendar();
-        Date endtime = cal2.getTime();
-        long long_endtime = endtime.getTime();
-        long difference = (long_endtime - long_starttime);
-        float diffSecs = difference / 1000;
-		Log.v(TAG,"********  Time to fetch data: " + difference + " or " + diffSecs + " seconds ******");
+        double difference = (System.nanoTime() - start) / 1e6;
+        double diffSecs = difference / 1000;
+		Log.v(TAG,"********  Time to fetch data: " + difference + " ms or " + diffSecs + " seconds ******");
     	Map<String,Object> result;
     	String output = (String) Router.parseJSONResponse(conn);
     	db.close();
@@ -0,0 +1,483 @@
+package com.couchbase.touchdb.testapp.tests;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import org.rti.rcd.ict.lgug.utils.CouchClient;
+import org.rti.rcd.ict.lgug.utils.EtagCache;
+
+import android.test.InstrumentationTestCase;
+
+import com.couchbase.touchdb.TDServer;
+import com.couchbase.touchdb.support.FileDirUtils;
+
+public class CouchClientTests extends InstrumentationTestCase {
+
+    public static final String TAG = "CouchClientTests";
+
+    private StubServer server;
+    private CouchClient client;
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new StubServer();
+        client = new CouchClient();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        client.shutdown();
+        server.close();
+    }
+
+    public void testReadsChunkedResponse() throws IOException {
+        server.respond("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nTransfer-Encoding: chunked\r\n"
+                + "Connection: close\r\n\r\n6\r\n{\"ok\":\r\n5\r\ntrue}\r\n0\r\n\r\n");
+        CouchClient.Response response = client.get(server.url("/db/doc")).execute();
+        assertEquals(200, response.getStatus());
+        assertEquals("{\"ok\":true}", response.getBodyAsString());
+    }
+
+    public void testDecodesGzipResponse() throws IOException {
+        byte[] json = "{\"gzip\":true}".getBytes("UTF-8");
+        ByteArrayOutputStream zipped = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(zipped);
+        gzip.write(json);
+        gzip.close();
+        server.respond(("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nContent-Encoding: gzip\r\n"
+                + "Content-Length: " + zipped.size() + "\r\nConnection: close\r\n\r\n").getBytes("UTF-8"),
+                zipped.toByteArray());
+        CouchClient.Response response = client.get(server.url("/db/doc")).execute();
+        assertEquals("gzip", server.request(0).get("accept-encoding"));
+        assertEquals("{\"gzip\":true}", response.getBodyAsString());
+    }
+
+    public void testRevalidatesWithEtag() throws IOException {
+        client.setCache(new EtagCache(64 * 1024));
+        server.respond("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nETag: \"1-abc\"\r\n"
+                + "Content-Length: 9\r\nConnection: close\r\n\r\n{\"rev\":1}");
+        server.respond("HTTP/1.1 304 Not Modified\r\nETag: \"1-abc\"\r\nConnection: close\r\n\r\n");
+
+        CouchClient.Response first = client.get(server.url("/db/doc")).execute();
+        assertFalse(first.isFromCache());
+        CouchClient.Response second = client.get(server.url("/db/doc")).execute();
+        assertEquals("\"1-abc\"", server.request(1).get("if-none-match"));
+        assertEquals(200, second.getStatus());
+        assertTrue(second.isFromCache());
+        assertEquals("{\"rev\":1}", second.getBodyAsString());
+    }
+
+    public void testReusesKeptAliveConnection() throws IOException {
+        server.respond("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nContent-Length: 9\r\n\r\n{\"rev\":1}");
+        server.respond("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nContent-Length: 9\r\n\r\n{\"rev\":2}");
+
+        assertEquals("{\"rev\":1}", client.get(server.url("/db/a")).execute().getBodyAsString());
+        assertEquals("{\"rev\":2}", client.get(server.url("/db/b")).execute().getBodyAsString());
+        assertEquals(1, server.connectionCount());
+    }
+
+    public void testStreamsRows() throws IOException {
+        String view = "{\"total_rows\":3,\"offset\":0,\"rows\":["
+                + "{\"id\":\"a\",\"key\":1},{\"id\":\"b\",\"key\":2},{\"id\":\"c\",\"key\":3}],\"update_seq\":7}";
+        server.respond(json(view));
+        server.respond(json(view));
+        server.respond(json("{\"results\":[{\"seq\":1,\"id\":\"a\"}],\"last_seq\":1}"));
+        server.respond(json(view));
+
+        final List<Object> ids = new ArrayList<Object>();
+        int count = client.get(server.url("/db/_all_docs")).forEachRow(new CouchClient.RowHandler() {
+            public boolean onRow(Map<String, Object> row) {
+                ids.add(row.get("id"));
+                return true;
+            }
+        });
+        assertEquals(3, count);
+        assertEquals(Arrays.asList("a", "b", "c"), ids);
+
+        // Stopping early discards the rest of the response.
+        count = client.get(server.url("/db/_all_docs")).forEachRow(new CouchClient.RowHandler() {
+            public boolean onRow(Map<String, Object> row) {
+                return false;
+            }
+        });
+        assertEquals(1, count);
+
+        CouchClient.Rows changes = client.get(server.url("/db/_changes")).openRows();
+        try {
+            assertTrue(changes.hasNext());
+            assertEquals("a", changes.next().get("id"));
+            assertFalse(changes.hasNext());
+        } finally {
+            changes.close();
+        }
+
+        // Rows read to the end leave the connection for the next request.
+        int connections = server.connectionCount();
+        assertEquals(3, client.get(server.url("/db/_all_docs")).forEachRow(new CouchClient.RowHandler() {
+            public boolean onRow(Map<String, Object> row) {
+                return true;
+            }
+        }));
+        assertEquals(connections, server.connectionCount());
+    }
+
+    public void testRowsRejectErrorStatus() throws IOException {
+        server.respond("HTTP/1.1 404 Object Not Found\r\nContent-Type: application/json\r\nContent-Length: 40\r\n"
+                + "Connection: close\r\n\r\n{\"error\":\"not_found\",\"reason\":\"missing\"}");
+        try {
+            client.get(server.url("/db/_design/app/_view/missing")).openRows();
+            fail("Expected a ResponseException");
+        } catch (CouchClient.ResponseException e) {
+            assertEquals(404, e.getStatus());
+            assertTrue(e.getBody().contains("not_found"));
+        }
+    }
+
+    public void testSendsEachBodyType() throws IOException {
+        for (int i = 0; i < 7; i++) {
+            server.respond(json("{\"ok\":true}"));
+        }
+        byte[] data = "attachment data".getBytes("UTF-8");
+
+        client.put(server.url("/db/doc")).body("{\"n\":1}").execute();
+        assertEquals("7", server.request(0).get("content-length"));
+        assertEquals("application/json; charset=UTF-8", server.request(0).get("content-type"));
+        assertEquals("{\"n\":1}", new String(server.body(0), "UTF-8"));
+
+        client.put(server.url("/db/doc/a.bin")).body(data, "application/octet-stream").execute();
+        assertEquals(String.valueOf(data.length), server.request(1).get("content-length"));
+        assertEquals("application/octet-stream", server.request(1).get("content-type"));
+        assertTrue(Arrays.equals(data, server.body(1)));
+
+        // Only the remaining bytes are sent, and the buffer is left as it was,
+        // so the request can be sent again.
+        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length + 3);
+        buffer.put(new byte[3]).put(data).position(3);
+        CouchClient.Request request = client.put(server.url("/db/doc/b.bin")).body(buffer, "application/octet-stream");
+        request.execute();
+        request.execute();
+        assertEquals(3, buffer.position());
+        for (int i = 2; i <= 3; i++) {
+            assertEquals(String.valueOf(data.length), server.request(i).get("content-length"));
+            assertTrue(Arrays.equals(data, server.body(i)));
+        }
+
+        File file = new File(getInstrumentation().getContext().getFilesDir(), "couch-client-body.bin");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        try {
+            client.put(server.url("/db/doc/c.bin")).body(file, "image/png").execute();
+        } finally {
+            file.delete();
+        }
+        assertEquals(String.valueOf(data.length), server.request(4).get("content-length"));
+        assertEquals("image/png", server.request(4).get("content-type"));
+        assertTrue(Arrays.equals(data, server.body(4)));
+
+        client.put(server.url("/db/doc/d.bin")).body(new ByteArrayInputStream(data), data.length, null).execute();
+        assertEquals(String.valueOf(data.length), server.request(5).get("content-length"));
+        assertNull(server.request(5).get("transfer-encoding"));
+        assertTrue(Arrays.equals(data, server.body(5)));
+
+        // A stream of unknown length goes chunked.
+        client.put(server.url("/db/doc/e.bin")).body(new ByteArrayInputStream(data), -1, null).execute();
+        assertEquals("chunked", server.request(6).get("transfer-encoding"));
+        assertNull(server.request(6).get("content-length"));
+        assertTrue(Arrays.equals(data, server.body(6)));
+    }
+
+    public void testCallsBackFromPool() throws Exception {
+        server.respond(json("{\"ok\":true}"));
+        server.respond("HTTP/1.1 409 Conflict\r\nContent-Type: application/json\r\nContent-Length: 20\r\n"
+                + "\r\n{\"error\":\"conflict\"}");
+        final CountDownLatch done = new CountDownLatch(2);
+        final Thread[] callbackThread = new Thread[1];
+        final Object[] outcomes = new Object[2];
+
+        Future<CouchClient.Response> future = client.get(server.url("/db/doc")).executeAsync(new CouchClient.Callback<CouchClient.Response>() {
+            public void onSuccess(CouchClient.Response result) {
+                callbackThread[0] = Thread.currentThread();
+                outcomes[0] = result;
+                done.countDown();
+            }
+
+            public void onFailure(Throwable error) {
+                outcomes[0] = error;
+                done.countDown();
+            }
+        });
+        assertEquals(200, future.get(5, TimeUnit.SECONDS).getStatus());
+
+        client.put(server.url("/db/doc")).body("{}").executeAsync(Map.class, new CouchClient.Callback<Object>() {
+            public void onSuccess(Object result) {
+                outcomes[1] = result;
+                done.countDown();
+            }
+
+            public void onFailure(Throwable error) {
+                outcomes[1] = error;
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertSame(future.get(), outcomes[0]);
+        assertNotNull(callbackThread[0]);
+        assertFalse(callbackThread[0] == Thread.currentThread());
+        assertTrue(outcomes[1] instanceof CouchClient.ResponseException);
+        assertEquals(409, ((CouchClient.ResponseException) outcomes[1]).getStatus());
+    }
+
+    public void testCancelDropsBlockedRequest() throws Exception {
+        // The first response never comes; one pool thread serves both requests.
+        client.setMaxThreads(1);
+        server.respond((byte[]) null);
+        server.respond(json("{\"ok\":true}"));
+        final AtomicInteger callbacks = new AtomicInteger();
+        CouchClient.Callback<CouchClient.Response> callback = new CouchClient.Callback<CouchClient.Response>() {
+            public void onSuccess(CouchClient.Response result) {
+                callbacks.incrementAndGet();
+            }
+
+            public void onFailure(Throwable error) {
+                callbacks.incrementAndGet();
+            }
+        };
+
+        Future<CouchClient.Response> blocked = client.get(server.url("/db/_changes?feed=longpoll")).executeAsync(callback);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (server.requestCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, server.requestCount());
+        assertTrue(blocked.cancel(true));
+
+        // Cancelling dropped the connection, so the pool thread is free at once
+        // rather than after the read timeout.
+        Future<CouchClient.Response> next = client.get(server.url("/db/doc")).executeAsync();
+        assertEquals(200, next.get(5, TimeUnit.SECONDS).getStatus());
+        assertTrue(blocked.isCancelled());
+        assertEquals(0, callbacks.get());
+    }
+
+    public void testDispatchesLocalRequestsInProcess() throws IOException {
+        File dir = new File(getInstrumentation().getContext().getFilesDir(), "couch-client-tests");
+        FileDirUtils.deleteRecursive(dir);
+        dir.mkdirs();
+        TDServer local = new TDServer(dir.getAbsolutePath());
+        try {
+            // Nothing listens on this port: only the router can answer.
+            client.setLocalServer(local, 59840);
+            String db = "http://0.0.0.0:59840/local";
+            assertEquals(201, client.put(db).execute().getStatus());
+            assertEquals(201, client.put(db + "/doc").body("{\"n\":1}").execute().getStatus());
+
+            CouchClient.Response get = client.get(db + "/doc").execute();
+            assertEquals(200, get.getStatus());
+            assertTrue(get.getBodyAsString().contains("\"n\":1"));
+            assertEquals(200, client.head(db + "/doc").execute().getStatus());
+            assertEquals(404, client.get(db + "/missing").execute().getStatus());
+        } finally {
+            local.close();
+            FileDirUtils.deleteRecursive(dir);
+        }
+    }
+
+    /**
+     * @return a kept-alive 200 response carrying json, which must be ASCII
+     */
+    private static String json(String json) {
+        return "HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nContent-Length: " + json.length() + "\r\n\r\n" + json;
+    }
+
+    /**
+     * Answers the queued responses in the order requests arrive, keeping each
+     * connection open for further requests unless the response says
+     * "Connection: close". Records the headers of each request, with
+     * lower-cased names, and its body.
+     */
+    private static class StubServer implements Runnable {
+        private final ServerSocket socket;
+        private final List<byte[][]> responses = new ArrayList<byte[][]>();
+        private final List<Map<String, String>> requests = new ArrayList<Map<String, String>>();
+        private final List<byte[]> bodies = new ArrayList<byte[]>();
+        private final AtomicInteger connections = new AtomicInteger();
+
+        StubServer() throws IOException {
+            socket = new ServerSocket(0);
+            Thread thread = new Thread(this, TAG);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        String url(String path) {
+            return "http://127.0.0.1:" + socket.getLocalPort() + path;
+        }
+
+        void respond(String response) throws IOException {
+            respond(response.getBytes("UTF-8"));
+        }
+
+        /**
+         * @param parts written in turn; a null part holds the response there
+         *        until the client hangs up
+         */
+        synchronized void respond(byte[]... parts) {
+            responses.add(parts);
+        }
+
+        synchronized int requestCount() {
+            return requests.size();
+        }
+
+        synchronized Map<String, String> request(int index) {
+            return requests.get(index);
+        }
+
+        synchronized byte[] body(int index) {
+            return bodies.get(index);
+        }
+
+        int connectionCount() {
+            return connections.get();
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    final Socket connection = socket.accept();
+                    connections.incrementAndGet();
+                    Thread thread = new Thread(TAG) {
+                        @Override
+                        public void run() {
+                            serve(connection);
+                        }
+                    };
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            } catch (IOException e) {
+                // Closed.
+            }
+        }
+
+        private void serve(Socket connection) {
+            try {
+                InputStream in = new BufferedInputStream(connection.getInputStream());
+                OutputStream out = connection.getOutputStream();
+                String requestLine;
+                while ((requestLine = readLine(in)) != null && requestLine.length() > 0) {
+                    Map<String, String> headers = new HashMap<String, String>();
+                    String line;
+                    while ((line = readLine(in)) != null && line.length() > 0) {
+                        int colon = line.indexOf(':');
+                        headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+                    }
+                    byte[] body = readBody(in, headers);
+                    byte[][] response;
+                    synchronized (this) {
+                        requests.add(headers);
+                        bodies.add(body);
+                        response = responses.get(requests.size() - 1);
+                    }
+                    boolean close = false;
+                    for (byte[] part : response) {
+                        if (part == null) {
+                            out.flush();
+                            while (in.read() != -1) {
+                                // Wait for the client to hang up.
+                            }
+                            return;
+                        }
+                        out.write(part);
+                        close |= new String(part, "UTF-8").contains("Connection: close");
+                    }
+                    out.flush();
+                    if (close) {
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                // Dropped by the client.
+            } finally {
+                try {
+                    connection.close();
+                } catch (IOException e) {
+                    // Already closed.
+                }
+            }
+        }
+
+        private static byte[] readBody(InputStream in, Map<String, String> headers) throws IOException {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+                int size;
+                while ((size = Integer.parseInt(readLine(in).trim(), 16)) > 0) {
+                    copy(in, body, size);
+                    readLine(in);
+                }
+                while (readLine(in).length() > 0) {
+                    // Trailers.
+                }
+            } else if (headers.containsKey("content-length")) {
+                copy(in, body, Integer.parseInt(headers.get("content-length")));
+            }
+            return body.toByteArray();
+        }
+
+        private static void copy(InputStream in, OutputStream out, int count) throws IOException {
+            for (int i = 0; i < count; i++) {
+                int b = in.read();
+                if (b == -1) {
+                    throw new EOFException();
+                }
+                out.write(b);
+            }
+        }
+
+        /**
+         * @return the line without its CRLF, or null at the end of the stream
+         */
+        private static String readLine(InputStream in) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b == -1) {
+                    return line.size() == 0 ? null : line.toString("UTF-8");
+                }
+                if (b != '\r') {
+                    line.write(b);
+                }
+            }
+            return line.toString("UTF-8");
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+    }
+}
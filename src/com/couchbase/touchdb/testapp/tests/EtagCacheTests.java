@@ -0,0 +1,79 @@
+package com.couchbase.touchdb.testapp.tests;
+
+import java.io.File;
+
+import org.rti.rcd.ict.lgug.utils.EtagCache;
+
+import android.test.InstrumentationTestCase;
+
+import com.couchbase.touchdb.support.FileDirUtils;
+
+public class EtagCacheTests extends InstrumentationTestCase {
+
+    public static final String TAG = "EtagCacheTests";
+
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = new File(getInstrumentation().getContext().getFilesDir(), "etag-tests");
+        FileDirUtils.deleteRecursive(dir);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileDirUtils.deleteRecursive(dir);
+    }
+
+    public void testMemoryEvictsLeastRecentlyUsed() {
+        EtagCache cache = new EtagCache(10);
+        cache.put("a", "\"a\"", new byte[4]);
+        cache.put("b", "\"b\"", new byte[4]);
+        assertNotNull(cache.get("a"));
+        cache.put("c", "\"c\"", new byte[4]);
+
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+        assertEquals("\"c\"", cache.get("c").getEtag());
+    }
+
+    public void testMemoryDoesNotKeepBodiesOverItsBound() {
+        EtagCache cache = new EtagCache(10);
+        cache.put("a", "\"a\"", new byte[4]);
+        cache.put("big", "\"big\"", new byte[11]);
+
+        assertNull(cache.get("big"));
+        assertNotNull(cache.get("a"));
+    }
+
+    public void testDiskEvictsLeastRecentlyUsed() {
+        // Room on disk for two 1000 byte bodies and their headers, not three;
+        // none fit in memory, so every get reads the disk tier.
+        EtagCache cache = new EtagCache(0, dir, 2500);
+        cache.put("http://host/db/a", "\"a\"", new byte[1000]);
+        cache.put("http://host/db/b", "\"b\"", new byte[1000]);
+        assertNotNull(cache.get("http://host/db/a"));
+        cache.put("http://host/db/c", "\"c\"", new byte[1000]);
+
+        assertNull(cache.get("http://host/db/b"));
+        assertEquals(1000, cache.get("http://host/db/a").getBody().length);
+        assertEquals("\"c\"", cache.get("http://host/db/c").getEtag());
+        assertEquals(2, dir.list().length);
+
+        // The disk tier survives a restart.
+        EtagCache reopened = new EtagCache(0, dir, 2500);
+        assertNull(reopened.get("http://host/db/b"));
+        assertEquals("\"a\"", reopened.get("http://host/db/a").getEtag());
+        assertEquals("\"c\"", reopened.get("http://host/db/c").getEtag());
+    }
+
+    public void testRemoveDropsBothTiers() {
+        EtagCache cache = new EtagCache(1024, dir, 4096);
+        cache.put("http://host/db/a", "\"a\"", new byte[100]);
+        cache.remove("http://host/db/a");
+
+        assertNull(cache.get("http://host/db/a"));
+        assertNull(new EtagCache(1024, dir, 4096).get("http://host/db/a"));
+    }
+}
@@ -0,0 +1,50 @@
+package com.couchbase.touchdb.testapp.tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.rti.rcd.ict.lgug.utils.LocalResourceLoader;
+import org.rti.rcd.ict.lgug.utils.StartupTracer;
+
+import android.test.InstrumentationTestCase;
+
+public class LocalResourceLoaderTests extends InstrumentationTestCase {
+
+    public static final String TAG = "LocalResourceLoaderTests";
+
+    private File traceFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        traceFile = new File(getInstrumentation().getContext().getFilesDir(), "trace-tests.json");
+        traceFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        traceFile.delete();
+    }
+
+    public void testServesStartupTrace() throws IOException {
+        StartupTracer tracer = new StartupTracer(traceFile, 2, "test");
+        tracer.mark("server");
+        // Nothing saved yet: the current launch is served all the same.
+        LocalResourceLoader loader = new LocalResourceLoader(null, 8888, null, tracer);
+
+        LocalResourceLoader.Resource resource = loader.load("http://0.0.0.0:8888" + LocalResourceLoader.TRACE_PATH);
+        assertEquals("application/json", resource.getMimeType());
+        List<?> launches = new ObjectMapper().readValue(resource.getData(), List.class);
+        assertEquals(1, launches.size());
+        Map<?, ?> launch = (Map<?, ?>) launches.get(0);
+        assertEquals("test", launch.get("release"));
+        assertTrue(((Map<?, ?>) launch.get("phases")).containsKey("server"));
+        assertFalse(traceFile.exists());
+
+        assertNull(loader.load("http://0.0.0.0:5984" + LocalResourceLoader.TRACE_PATH));
+        assertNull(loader.load("http://example.com:8888" + LocalResourceLoader.TRACE_PATH));
+        assertNull(new LocalResourceLoader(null, 8888, null, null).load("http://0.0.0.0:8888" + LocalResourceLoader.TRACE_PATH));
+    }
+}
@@ -0,0 +1,353 @@
+package com.couchbase.touchdb.testapp.tests;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.rti.rcd.ict.lgug.utils.BlobVerifier;
+import org.rti.rcd.ict.lgug.utils.ExtractionManifest;
+import org.rti.rcd.ict.lgug.utils.Hex;
+import org.rti.rcd.ict.lgug.utils.InstallJournal;
+import org.rti.rcd.ict.lgug.utils.ZipExtractor;
+
+import android.content.res.AssetManager;
+import android.test.InstrumentationTestCase;
+
+import com.couchbase.touchdb.support.FileDirUtils;
+
+public class ZipExtractorTests extends InstrumentationTestCase {
+
+    public static final String TAG = "ZipExtractorTests";
+
+    private File dir;
+    private File outputDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = new File(getInstrumentation().getContext().getFilesDir(), "zip-tests");
+        FileDirUtils.deleteRecursive(dir);
+        outputDir = new File(dir, "out");
+        outputDir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileDirUtils.deleteRecursive(dir);
+    }
+
+    public void testReExtractsNothingFromUnchangedAsset() throws IOException {
+        // The bundled archive defers every entry's CRC and size to a data descriptor.
+        String asset = "coconut-sample.zip";
+        File manifest = new File(dir, "asset.manifest");
+        assertEquals(132, extractAsset(asset, manifest));
+        assertEquals(0, extractAsset(asset, manifest));
+        assertEquals(0, extractAsset(asset, manifest));
+        assertEquals(132, ExtractionManifest.load(manifest).names().size());
+    }
+
+    public void testExtractsAssetOnPoolReportingInOrder() throws IOException {
+        final Thread caller = Thread.currentThread();
+        final List<Integer> indexes = new ArrayList<Integer>();
+        int written = new ZipExtractor(outputDir).setThreads(4)
+                .setProgressListener(new ZipExtractor.ProgressListener() {
+                    public void onEntryExtracted(ZipEntry entry, int index, int total) {
+                        assertSame(caller, Thread.currentThread());
+                        assertEquals(132, total);
+                        assertTrue(new File(outputDir, entry.getName()).isFile());
+                        indexes.add(index);
+                    }
+                }).extractAsset(getInstrumentation().getContext().getAssets(), "coconut-sample.zip");
+        assertEquals(132, written);
+        for (int i = 0; i < written; i++) {
+            assertEquals(i, (int) indexes.get(i));
+        }
+    }
+
+    public void testRejectsEntryOutsideOutputDir() throws IOException {
+        File zip = writeZip("slip.zip", false, "ok.txt", "fine", "../../escaped.txt", "gotcha");
+        try {
+            new ZipExtractor(outputDir).setThreads(1).extract(zip);
+            fail("Extracted an entry outside the output dir");
+        } catch (IOException e) {
+            // Expected.
+        }
+        assertFalse(new File(dir.getParentFile(), "escaped.txt").exists());
+
+        try {
+            new ZipExtractor(outputDir).extractStream(new FileInputStream(zip));
+            fail("Streamed an entry outside the output dir");
+        } catch (IOException e) {
+            // Expected.
+        }
+        assertFalse(new File(dir.getParentFile(), "escaped.txt").exists());
+    }
+
+    public void testResumesInterruptedInstall() throws IOException {
+        File zip = writeZip("app.zip", false, "a/1.txt", "one", "a/2.txt", "two", "b/3.txt", "three", "b/4.txt", "four");
+        File manifest = new File(dir, "app.manifest");
+        try {
+            new ZipExtractor(outputDir).setThreads(1)
+                    .setManifest(ExtractionManifest.load(manifest))
+                    .setJournal(InstallJournal.open(dir, "app"))
+                    .setProgressListener(new ZipExtractor.ProgressListener() {
+                        public void onEntryExtracted(ZipEntry entry, int index, int total) {
+                            if (index == 1) {
+                                throw new IllegalStateException("Killed");
+                            }
+                        }
+                    }).extract(zip);
+            fail("The extraction was not interrupted");
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+        // Nothing half-installed is visible; what was done is staged.
+        assertEquals(0, outputDir.list().length);
+        assertFalse(manifest.exists());
+
+        int written = new ZipExtractor(outputDir).setThreads(1)
+                .setManifest(ExtractionManifest.load(manifest))
+                .setJournal(InstallJournal.open(dir, "app"))
+                .extract(zip);
+        assertEquals(2, written);
+        assertEquals("one", read(new File(outputDir, "a/1.txt")));
+        assertEquals("two", read(new File(outputDir, "a/2.txt")));
+        assertEquals("three", read(new File(outputDir, "b/3.txt")));
+        assertEquals("four", read(new File(outputDir, "b/4.txt")));
+        assertFalse(new File(dir, ".app.staging").exists());
+        assertFalse(new File(dir, ".app.journal").exists());
+        assertEquals(4, ExtractionManifest.load(manifest).names().size());
+    }
+
+    public void testResumesInterruptedStream() throws IOException {
+        // Deflated by ZipOutputStream, so every entry has a data descriptor.
+        File zip = writeZip("app.zip", false, "a/1.txt", "one", "a/2.txt", "two", "b/3.txt", "three", "b/4.txt", "four");
+        interruptStream(zip, 1);
+
+        assertEquals(2, resumeStream(zip));
+        assertEquals("one", read(new File(outputDir, "a/1.txt")));
+        assertEquals("four", read(new File(outputDir, "b/4.txt")));
+        assertFalse(new File(dir, ".app.staging").exists());
+        assertFalse(new File(dir, ".app.journal").exists());
+
+        // The manifest now has the CRCs the stream reported at the end of each entry.
+        ExtractionManifest manifest = ExtractionManifest.load(new File(dir, "app.manifest"));
+        assertEquals(4, manifest.names().size());
+        assertEquals(0, resumeStream(zip));
+    }
+
+    public void testResumedStreamRewritesDamagedStagedEntry() throws IOException {
+        File zip = writeZip("app.zip", false, "a/1.txt", "one", "a/2.txt", "two", "b/3.txt", "three");
+        interruptStream(zip, 1);
+        write(new File(dir, ".app.staging/a/1.txt"), "onx and more".getBytes("UTF-8"));
+        write(new File(dir, ".app.staging/a/2.txt"), "tw".getBytes("UTF-8"));
+
+        assertEquals(3, resumeStream(zip));
+        assertEquals("one", read(new File(outputDir, "a/1.txt")));
+        assertEquals("two", read(new File(outputDir, "a/2.txt")));
+        assertEquals("three", read(new File(outputDir, "b/3.txt")));
+    }
+
+    public void testRewritesOnlyEntriesWhoseCrcChanged() throws IOException {
+        File manifest = new File(dir, "app.manifest");
+        File v1 = writeZip("v1.zip", false, "same.txt", "same", "changed.txt", "old!", "gone.txt", "bye");
+        assertEquals(3, new ZipExtractor(outputDir).setManifest(ExtractionManifest.load(manifest)).extract(v1));
+
+        // Same size, different CRC: only the manifest can tell it changed.
+        File v2 = writeZip("v2.zip", false, "same.txt", "same", "changed.txt", "new!");
+        assertEquals(1, new ZipExtractor(outputDir).setManifest(ExtractionManifest.load(manifest)).extract(v2));
+        assertEquals("same", read(new File(outputDir, "same.txt")));
+        assertEquals("new!", read(new File(outputDir, "changed.txt")));
+        assertFalse(new File(outputDir, "gone.txt").exists());
+        assertFalse(ExtractionManifest.load(manifest).contains("gone.txt"));
+    }
+
+    public void testKeepsBlobsThatLeftTheArchive() throws IOException {
+        File manifest = new File(dir, "app.manifest");
+        String blob = sha1Hex("attachment".getBytes("UTF-8")) + ".blob";
+        File v1 = writeZip("v1.zip", false, blob, "attachment", "gone.txt", "bye");
+        new ZipExtractor(outputDir).setContentAddressed(true).setManifest(ExtractionManifest.load(manifest)).extract(v1);
+
+        // The blob store is shared with the user's attachments; compaction decides.
+        File v2 = writeZip("v2.zip", false, "index.html", "<p>");
+        new ZipExtractor(outputDir).setContentAddressed(true).setManifest(ExtractionManifest.load(manifest)).extract(v2);
+        assertTrue(new File(outputDir, blob).exists());
+        assertFalse(new File(outputDir, "gone.txt").exists());
+        assertFalse(ExtractionManifest.load(manifest).contains(blob));
+    }
+
+    public void testFailsOnCorruptEntry() throws IOException {
+        File zip = writeZip("corrupt.zip", true, "data.txt", "the quick brown fox");
+        byte[] bytes = readBytes(zip);
+        int offset = indexOf(bytes, "quick".getBytes("UTF-8"));
+        bytes[offset] = 'Q';
+        OutputStream out = new FileOutputStream(zip);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+        try {
+            new ZipExtractor(outputDir).extractStream(new FileInputStream(zip));
+            fail("Extracted an entry whose CRC does not match");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    public void testSkipsBlobsAlreadyOnDisk() throws IOException {
+        // No manifest: only the blob names say the files can be kept.
+        AssetManager assets = getInstrumentation().getContext().getAssets();
+        assertEquals(132, new ZipExtractor(outputDir).setContentAddressed(true).extractAsset(assets, "coconut-sample.zip"));
+        assertEquals(0, new ZipExtractor(outputDir).setContentAddressed(true).extractAsset(assets, "coconut-sample.zip"));
+
+        String blob = sha1Hex("attachment".getBytes("UTF-8")) + ".blob";
+        File zip = writeZip("blobs.zip", false, blob, "attachment", "index.html", "<p>");
+        assertEquals(2, new ZipExtractor(outputDir).setContentAddressed(true).extractStream(new FileInputStream(zip)));
+        assertEquals(1, new ZipExtractor(outputDir).setContentAddressed(true).extractStream(new FileInputStream(zip)));
+    }
+
+    public void testVerifierFindsCorruptBlob() throws IOException {
+        byte[] content = "attachment".getBytes("UTF-8");
+        String good = sha1Hex(content);
+        String bad = sha1Hex("something else".getBytes("UTF-8"));
+        write(new File(outputDir, good + ".blob"), content);
+        write(new File(outputDir, bad + ".blob"), content);
+
+        List<String> corrupt = new BlobVerifier(outputDir).verify();
+        assertEquals(1, corrupt.size());
+        assertEquals(bad, corrupt.get(0));
+        assertTrue(new File(outputDir, bad + ".blob").exists());
+
+        new BlobVerifier(outputDir).setDeleteCorrupt(true).verify();
+        assertFalse(new File(outputDir, bad + ".blob").exists());
+        assertTrue(new File(outputDir, good + ".blob").exists());
+    }
+
+    /**
+     * Streams zip with a manifest and a journal, and kills the extraction once
+     * the entry at index has been staged.
+     */
+    private void interruptStream(File zip, final int index) throws IOException {
+        try {
+            new ZipExtractor(outputDir)
+                    .setManifest(ExtractionManifest.load(new File(dir, "app.manifest")))
+                    .setJournal(InstallJournal.open(dir, "app"))
+                    .setProgressListener(new ZipExtractor.ProgressListener() {
+                        public void onEntryExtracted(ZipEntry entry, int i, int total) {
+                            if (i == index) {
+                                throw new IllegalStateException("Killed");
+                            }
+                        }
+                    }).extractStream(new FileInputStream(zip));
+            fail("The extraction was not interrupted");
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+        assertEquals(0, outputDir.list().length);
+    }
+
+    private int resumeStream(File zip) throws IOException {
+        return new ZipExtractor(outputDir)
+                .setManifest(ExtractionManifest.load(new File(dir, "app.manifest")))
+                .setJournal(InstallJournal.open(dir, "app"))
+                .extractStream(new FileInputStream(zip));
+    }
+
+    /**
+     * Installs an asset the way Bootstrap does.
+     */
+    private int extractAsset(String asset, File manifest) throws IOException {
+        return new ZipExtractor(outputDir)
+                .setManifest(ExtractionManifest.load(manifest))
+                .setJournal(InstallJournal.open(dir, asset))
+                .setContentAddressed(true)
+                .extractAsset(getInstrumentation().getContext().getAssets(), asset);
+    }
+
+    /**
+     * @param namesAndContents name, content, name, content...
+     */
+    private File writeZip(String name, boolean stored, String... namesAndContents) throws IOException {
+        File zip = new File(dir, name);
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip));
+        try {
+            for (int i = 0; i < namesAndContents.length; i += 2) {
+                byte[] content = namesAndContents[i + 1].getBytes("UTF-8");
+                ZipEntry entry = new ZipEntry(namesAndContents[i]);
+                if (stored) {
+                    CRC32 crc = new CRC32();
+                    crc.update(content);
+                    entry.setMethod(ZipEntry.STORED);
+                    entry.setSize(content.length);
+                    entry.setCrc(crc.getValue());
+                }
+                out.putNextEntry(entry);
+                out.write(content);
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+        return zip;
+    }
+
+    private static String sha1Hex(byte[] content) {
+        try {
+            return Hex.encode(MessageDigest.getInstance("SHA-1").digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static int indexOf(byte[] bytes, byte[] part) {
+        for (int i = 0; i + part.length <= bytes.length; i++) {
+            int j = 0;
+            while (j < part.length && bytes[i + j] == part[j]) {
+                j++;
+            }
+            if (j == part.length) {
+                return i;
+            }
+        }
+        throw new AssertionError("Not found");
+    }
+
+    private static void write(File file, byte[] content) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(readBytes(file), "UTF-8");
+    }
+
+    private static byte[] readBytes(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
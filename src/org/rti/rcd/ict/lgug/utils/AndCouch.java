@@ -2,16 +2,13 @@ package org.rti.rcd.ict.lgug.utils;
 
 /*
  * AndCouch is a very simple http wrapper library for CouchDB with minimal
- * dependencies
+ * dependencies. It is a facade over CouchClient, which new code should use.
  * Code extracted from Dale Harvey's MobileFuton: https://github.com/daleharvey/Android-MobileFuton
  */
 
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -58,72 +55,62 @@ public class AndCouch {
 		return AndCouch.httpRequest("GET", url, null, headers);
 	}
 
-	public static AndCouch httpRequest(String method, String url,
-			String data, String[][] headers) throws JSONException {
-
-		StringBuffer sb = new StringBuffer();
-		int statusCode = 0;
-
-		try {
-
-			HttpURLConnection c = (HttpURLConnection) new URL(url).openConnection();
-			String charEncoding = "iso-8859-1";
-
-			c.setDoOutput(true);
-			c.setUseCaches(false);
+	public static Future<AndCouch> postAsync(String url, String data, CouchClient.Callback<? super AndCouch> callback) {
+		return httpRequestAsync("POST", url, data, new String[][]{}, callback);
+	}
 
-			c.setRequestMethod(method);
-			c.setRequestProperty("Content-type", "application/json; charset="
-					+ "UTF-8");
+	public static Future<AndCouch> putAsync(String url, String data, CouchClient.Callback<? super AndCouch> callback) {
+		return httpRequestAsync("PUT", url, data, new String[][]{}, callback);
+	}
 
-			for (String[] tmp : headers) {
-				c.setRequestProperty(tmp[0], tmp[1]);
-			}
+	public static Future<AndCouch> getAsync(String url, CouchClient.Callback<? super AndCouch> callback) {
+		return httpRequestAsync("GET", url, null, new String[][]{}, callback);
+	}
 
-			if (method != "GET" && data != null) {
-				try {
-					c.setDoInput(true);
-					c.setRequestProperty("Content-Length",
-							Integer.toString(data.length()));
-					c.getOutputStream().write(data.getBytes(charEncoding));
-				} catch (Exception e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
+	/**
+	 * Runs {@link #httpRequest} on the shared client's pool. callback may be
+	 * null, and is called on the pool thread.
+	 */
+	public static Future<AndCouch> httpRequestAsync(final String method, final String url,
+			final String data, final String[][] headers, CouchClient.Callback<? super AndCouch> callback) {
+		return CouchClient.getDefault().submit(new Callable<AndCouch>() {
+			public AndCouch call() throws JSONException {
+				return httpRequest(method, url, data, headers);
 			}
+		}, callback);
+	}
 
-			c.connect();
-
-			statusCode = c.getResponseCode();
-
-			// TODO: Nasty
-			try {
-				BufferedReader rd = new BufferedReader(new InputStreamReader(
-						c.getInputStream()));
-				String line;
-				while ((line = rd.readLine()) != null) {
-					sb.append(line);
-				}
-				rd.close();
-			} catch (FileNotFoundException e) {
-
-			} catch (NullPointerException e) {
-
-			}
+	/**
+	 * Sends the request through the shared {@link CouchClient}, so connections
+	 * to the same host:port are kept alive and reused. On an I/O error the
+	 * result has status 0 and an empty body, as before.
+	 */
+	public static AndCouch httpRequest(String method, String url,
+			String data, String[][] headers) throws JSONException {
 
-			finally {
-				c.disconnect();
-			}
+		CouchClient.Request request = CouchClient.getDefault().request(method, url);
+		for (String[] tmp : headers) {
+			request.header(tmp[0], tmp[1]);
+		}
+		if (!"GET".equals(method) && data != null) {
+			request.body(data);
+		}
 
+		String result = "";
+		int statusCode = 0;
+		try {
+			CouchClient.Response response = request.execute();
+			statusCode = response.getStatus();
+			result = response.getBodyAsString();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 
-		JSONObject json= sb.toString().length() == 0
+		JSONObject json= result.length() == 0
 			? new JSONObject()
-			: new JSONObject(sb.toString());
+			: new JSONObject(result);
 
-		return new AndCouch(headers, json, sb.toString(), statusCode);
+		return new AndCouch(headers, json, result, statusCode);
 	};
 
 	@Override
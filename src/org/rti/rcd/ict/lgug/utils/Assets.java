@@ -0,0 +1,165 @@
+package org.rti.rcd.ict.lgug.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+
+/**
+ * Reads assets whole and correctly, whether or not aapt compressed them.
+ *
+ * An asset stored uncompressed is a region of the APK: openFd() hands back
+ * the APK's descriptor with the region's offset and length, and the region is
+ * memory-mapped rather than copied. A compressed asset has no descriptor; it
+ * is inflated in chunks until the stream ends, as neither available() nor a
+ * single read() can be trusted to cover the whole of it.
+ */
+public final class Assets {
+
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	private Assets() {
+	}
+
+	/**
+	 * @return the size of an asset stored uncompressed, or -1 if it is compressed
+	 */
+	public static long length(AssetManager assets, String path) {
+		try {
+			AssetFileDescriptor fd = assets.openFd(path);
+			try {
+				return fd.getLength();
+			} finally {
+				fd.close();
+			}
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return the whole asset, read-only; mapped from the APK if it is stored
+	 * uncompressed, otherwise inflated into a heap buffer
+	 */
+	public static ByteBuffer read(AssetManager assets, String path) throws IOException {
+		ByteBuffer mapped = map(assets, path);
+		if (mapped != null) {
+			return mapped;
+		}
+		InputStream in = assets.open(path, AssetManager.ACCESS_STREAMING);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(BUFFER_SIZE);
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int count;
+			while ((count = in.read(buffer)) != -1) {
+				out.write(buffer, 0, count);
+			}
+			return ByteBuffer.wrap(out.toByteArray()).asReadOnlyBuffer();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return a stream of the asset for a parser to read from: over the
+	 * mapped region if it is stored uncompressed, otherwise inflating as it is
+	 * read
+	 */
+	public static InputStream open(AssetManager assets, String path) throws IOException {
+		ByteBuffer mapped = map(assets, path);
+		if (mapped != null) {
+			return new ByteBufferInputStream(mapped);
+		}
+		return assets.open(path, AssetManager.ACCESS_STREAMING);
+	}
+
+	/**
+	 * @return the asset decoded as UTF-8, for APIs that only take a String
+	 */
+	public static String readString(AssetManager assets, String path) throws IOException {
+		ByteBuffer bytes = read(assets, path);
+		byte[] array;
+		if (bytes.hasArray()) {
+			array = bytes.array();
+		} else {
+			array = new byte[bytes.remaining()];
+			bytes.duplicate().get(array);
+		}
+		try {
+			return new String(array, bytes.hasArray() ? bytes.arrayOffset() + bytes.position() : 0,
+					bytes.remaining(), "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * @return the asset's region of the APK mapped read-only, or null if the
+	 * asset is compressed
+	 */
+	static ByteBuffer map(AssetManager assets, String path) throws IOException {
+		AssetFileDescriptor fd;
+		try {
+			fd = assets.openFd(path);
+		} catch (FileNotFoundException e) {
+			// Compressed by aapt - or missing, which open() will report.
+			return null;
+		}
+		// Closing this stream closes the descriptor; the mapping stays valid.
+		FileInputStream in = fd.createInputStream();
+		try {
+			FileChannel channel = in.getChannel();
+			return channel.map(FileChannel.MapMode.READ_ONLY, fd.getStartOffset(), fd.getLength());
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads a buffer from its position to its limit without moving either.
+	 */
+	static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer.duplicate();
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) {
+			if (length == 0) {
+				return 0;
+			}
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			int count = Math.min(length, buffer.remaining());
+			buffer.get(bytes, offset, count);
+			return count;
+		}
+
+		@Override
+		public long skip(long n) {
+			int count = (int) Math.max(0, Math.min(n, buffer.remaining()));
+			buffer.position(buffer.position() + count);
+			return count;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+}
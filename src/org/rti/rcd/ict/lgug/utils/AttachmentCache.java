@@ -0,0 +1,316 @@
+package org.rti.rcd.ict.lgug.utils;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Observable;
+import java.util.Observer;
+
+import android.util.Log;
+
+import com.couchbase.touchdb.TDAttachment;
+import com.couchbase.touchdb.TDDatabase;
+import com.couchbase.touchdb.TDRevision;
+import com.couchbase.touchdb.TDServer;
+import com.couchbase.touchdb.TDStatus;
+
+/**
+ * Design document attachments - the couchapp's HTML, CSS and scripts - held
+ * in memory, so a page load does not go through the router, the database and
+ * a blob file for each of them.
+ *
+ * Bodies are keyed by database, document, revpos and name, bounded in bytes
+ * and evicted least recently used first. Each comes with its Content-Type,
+ * Content-Length and ETag headers built once. The attachment stubs of each
+ * design document are kept as well, so a hit needs no database lookup; both
+ * are dropped when the database reports a change to the document. An
+ * attachment bigger than an eighth of the cache is not kept, so one large
+ * file can not flush the hot set.
+ */
+public class AttachmentCache implements Observer {
+
+	public static final String TAG = "AttachmentCache";
+
+	public static final int DEFAULT_MAX_BYTES = 2 * 1024 * 1024;
+
+	private static final String DESIGN_PREFIX = "_design/";
+
+	/**
+	 * An attachment body and the headers to serve it with.
+	 */
+	public static class Entry {
+		private final byte[] body;
+		private final String contentType;
+		private final String etag;
+		private final Map<String, List<String>> headers;
+
+		Entry(byte[] body, String contentType, String etag) {
+			this.body = body;
+			this.contentType = contentType;
+			this.etag = etag;
+			Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+			headers.put("Content-Type", Collections.singletonList(contentType));
+			headers.put("Content-Length", Collections.singletonList(Integer.toString(body.length)));
+			headers.put("ETag", Collections.singletonList(etag));
+			this.headers = Collections.unmodifiableMap(headers);
+		}
+
+		public byte[] getBody() {
+			return body;
+		}
+
+		public String getContentType() {
+			return contentType;
+		}
+
+		public String getEtag() {
+			return etag;
+		}
+
+		/**
+		 * @return Content-Type, Content-Length and ETag, in the form of
+		 * HttpURLConnection.getHeaderFields()
+		 */
+		public Map<String, List<String>> getHeaders() {
+			return headers;
+		}
+	}
+
+	private final TDServer server;
+	private final int maxBytes;
+
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(32, 0.75f, true);
+	private long bytes;
+
+	/**
+	 * The _attachments stubs of the current revision of each design document
+	 * looked up so far, by database and document.
+	 */
+	private final Map<String, Map<String, Object>> stubs = new HashMap<String, Map<String, Object>>();
+
+	/**
+	 * The databases observed, by name, so one reopened under the same name is noticed.
+	 */
+	private final Map<String, TDDatabase> databases = new HashMap<String, TDDatabase>();
+
+	/**
+	 * Bumped on every invalidation, so a body read while its document was
+	 * being updated is not stored.
+	 */
+	private int generation;
+
+	private int hits;
+	private int misses;
+
+	public AttachmentCache(TDServer server, int maxBytes) {
+		this.server = server;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @return the attachment, from memory if it is there; null if docId is not
+	 * a design document, or the attachment does not exist or is too big to keep
+	 */
+	@SuppressWarnings("unchecked")
+	public Entry get(String dbName, String docId, String name) {
+		if (!docId.startsWith(DESIGN_PREFIX)) {
+			return null;
+		}
+		TDDatabase db = server.getExistingDatabaseNamed(dbName);
+		if (db == null || !db.open()) {
+			return null;
+		}
+		String docKey = dbName + '\0' + docId;
+		int seen;
+		synchronized (this) {
+			watch(dbName, db);
+			Map<String, Object> attachments = stubs.get(docKey);
+			if (attachments != null) {
+				Entry entry = attachments.get(name) instanceof Map
+						? entries.get(key(docKey, (Map<String, Object>) attachments.get(name), name)) : null;
+				if (entry != null) {
+					hits++;
+					return entry;
+				}
+			}
+			misses++;
+			seen = generation;
+		}
+
+		TDRevision rev = db.getDocumentWithIDAndRev(docId, null, EnumSet.noneOf(TDDatabase.TDContentOptions.class));
+		if (rev == null || !(rev.getProperties().get("_attachments") instanceof Map)) {
+			return null;
+		}
+		Map<String, Object> attachments = (Map<String, Object>) rev.getProperties().get("_attachments");
+		if (!(attachments.get(name) instanceof Map)) {
+			return null;
+		}
+		Map<String, Object> stub = (Map<String, Object>) attachments.get(name);
+		Object length = stub.get("length");
+		if (length instanceof Number && ((Number) length).longValue() > maxBytes / 8) {
+			return null;
+		}
+		TDStatus status = new TDStatus();
+		TDAttachment attachment = db.getAttachmentForSequence(rev.getSequence(), name, status);
+		if (attachment == null || attachment.getData() == null) {
+			return null;
+		}
+		byte[] body = attachment.getData();
+		if (body.length > maxBytes / 8) {
+			return null;
+		}
+		Object digest = stub.get("digest");
+		String etag = "\"" + (digest != null ? digest : rev.getRevId() + "/" + name) + "\"";
+		String contentType = attachment.getContentType() != null ? attachment.getContentType() : "application/octet-stream";
+		Entry entry = new Entry(body, contentType, etag);
+
+		synchronized (this) {
+			if (generation == seen) {
+				stubs.put(docKey, attachments);
+				put(key(docKey, stub, name), entry);
+			}
+			Log.v(TAG, "Loaded " + dbName + "/" + docId + "/" + name + " (" + body.length + " bytes); " + this);
+		}
+		return entry;
+	}
+
+	/**
+	 * Splits the path of a design document attachment's URL.
+	 * @param path e.g. /db/_design/ddoc/css/site.css, still percent-encoded
+	 * @return the database, the document ID and the attachment name; null if
+	 * path is not that of a design document attachment, e.g. of a view
+	 */
+	public static String[] parseAttachmentPath(String path) {
+		String[] segments = path.split("/");
+		if (segments.length < 5 || segments[0].length() != 0 || !"_design".equals(segments[2])
+				|| segments[4].startsWith("_")) {
+			return null;
+		}
+		try {
+			StringBuilder name = new StringBuilder();
+			for (int i = 4; i < segments.length; i++) {
+				name.append(i == 4 ? "" : "/").append(decodeSegment(segments[i]));
+			}
+			return new String[] { decodeSegment(segments[1]), DESIGN_PREFIX + decodeSegment(segments[3]),
+					name.toString() };
+		} catch (IllegalArgumentException e) {
+			// Badly escaped; left for the router to answer.
+			return null;
+		}
+	}
+
+	/**
+	 * Percent-decodes a path segment, in which a '+' is a '+'.
+	 */
+	private static String decodeSegment(String segment) {
+		try {
+			return URLDecoder.decode(segment.replace("+", "%2B"), "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * Drops everything held for a document.
+	 */
+	public synchronized void invalidate(String dbName, String docId) {
+		generation++;
+		String docKey = dbName + '\0' + docId;
+		stubs.remove(docKey);
+		removeEntries(docKey + '\0');
+	}
+
+	/**
+	 * Called by the databases this cache has served from, for each change.
+	 */
+	public void update(Observable observable, Object data) {
+		if (!(observable instanceof TDDatabase) || !(data instanceof Map)) {
+			return;
+		}
+		Object rev = ((Map<?, ?>) data).get("rev");
+		if (rev instanceof TDRevision && ((TDRevision) rev).getDocId().startsWith(DESIGN_PREFIX)) {
+			invalidate(((TDDatabase) observable).getName(), ((TDRevision) rev).getDocId());
+		}
+	}
+
+	public synchronized int getHitCount() {
+		return hits;
+	}
+
+	public synchronized int getMissCount() {
+		return misses;
+	}
+
+	/**
+	 * @return hits over lookups, 0 before the first lookup
+	 */
+	public synchronized double getHitRatio() {
+		int lookups = hits + misses;
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+	/**
+	 * @return the bytes of attachment bodies held
+	 */
+	public synchronized long getSize() {
+		return bytes;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return TAG + "[" + entries.size() + " attachments, " + bytes + " bytes, " + hits + " hits, " + misses
+				+ " misses, hit ratio " + Math.round(getHitRatio() * 100) + "%]";
+	}
+
+	private void watch(String dbName, TDDatabase db) {
+		TDDatabase watched = databases.get(dbName);
+		if (watched == db) {
+			return;
+		}
+		if (watched != null) {
+			watched.deleteObserver(this);
+			generation++;
+			for (Iterator<String> docKeys = stubs.keySet().iterator(); docKeys.hasNext();) {
+				if (docKeys.next().startsWith(dbName + '\0')) {
+					docKeys.remove();
+				}
+			}
+			removeEntries(dbName + '\0');
+		}
+		db.addObserver(this);
+		databases.put(dbName, db);
+	}
+
+	private static String key(String docKey, Map<String, Object> stub, String name) {
+		return docKey + '\0' + stub.get("revpos") + '\0' + name;
+	}
+
+	private void put(String key, Entry entry) {
+		Entry old = entries.put(key, entry);
+		if (old != null) {
+			bytes -= old.body.length;
+		}
+		bytes += entry.body.length;
+		Iterator<Entry> eldest = entries.values().iterator();
+		while (bytes > maxBytes && eldest.hasNext()) {
+			bytes -= eldest.next().body.length;
+			eldest.remove();
+		}
+	}
+
+	private void removeEntries(String prefix) {
+		for (Iterator<Map.Entry<String, Entry>> i = entries.entrySet().iterator(); i.hasNext();) {
+			Map.Entry<String, Entry> entry = i.next();
+			if (entry.getKey().startsWith(prefix)) {
+				bytes -= entry.getValue().body.length;
+				i.remove();
+			}
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package org.rti.rcd.ict.lgug.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+import android.util.Log;
+
+/**
+ * Checks attachment blobs against their names. TouchDB names each blob by the
+ * SHA-1 of its content (&lt;sha1&gt;.blob), so a blob whose content no longer
+ * hashes to its name is corrupt.
+ *
+ * Files are hashed on a pool sized to the number of cores.
+ */
+public class BlobVerifier {
+
+	public static final String TAG = "BlobVerifier";
+
+	private static final Pattern BLOB_NAME = Pattern.compile("[0-9a-f]{40}\\.blob");
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[BUFFER_SIZE];
+		}
+	};
+
+	private final File dir;
+	private boolean deleteCorrupt;
+	private int threads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * @param dir searched recursively for blobs
+	 */
+	public BlobVerifier(File dir) {
+		this.dir = dir;
+	}
+
+	/**
+	 * @return true if name (a file or zip entry name) is that of a content-addressed blob
+	 */
+	public static boolean isBlobName(String name) {
+		return BLOB_NAME.matcher(new File(name).getName()).matches();
+	}
+
+	/**
+	 * Deletes corrupt blobs, so they are extracted again instead of being served.
+	 */
+	public BlobVerifier setDeleteCorrupt(boolean deleteCorrupt) {
+		this.deleteCorrupt = deleteCorrupt;
+		return this;
+	}
+
+	public BlobVerifier setThreads(int threads) {
+		this.threads = Math.max(1, threads);
+		return this;
+	}
+
+	/**
+	 * Re-hashes every blob under dir.
+	 * @return the keys (SHA-1 in hex) of the blobs whose content does not match
+	 */
+	public List<String> verify() throws IOException {
+		List<File> blobs = new ArrayList<File>();
+		collect(dir, blobs);
+		List<String> corrupt = new ArrayList<String>();
+		if (blobs.isEmpty()) {
+			return corrupt;
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, blobs.size()));
+		try {
+			List<Future<Boolean>> results = new ArrayList<Future<Boolean>>(blobs.size());
+			for (final File blob : blobs) {
+				results.add(pool.submit(new Callable<Boolean>() {
+					public Boolean call() throws IOException {
+						return Boolean.valueOf(key(blob).equals(sha1(blob)));
+					}
+				}));
+			}
+			for (int i = 0; i < blobs.size(); i++) {
+				File blob = blobs.get(i);
+				if (!results.get(i).get().booleanValue()) {
+					corrupt.add(key(blob));
+					Log.w(TAG, "Corrupt blob " + blob);
+					if (deleteCorrupt && !blob.delete()) {
+						Log.w(TAG, "Can not delete " + blob);
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			InterruptedIOException ioe = new InterruptedIOException("Verification of " + dir + " interrupted");
+			ioe.initCause(e);
+			throw ioe;
+		} catch (ExecutionException e) {
+			IOException ioe = new IOException("Verification of " + dir + " failed");
+			ioe.initCause(e.getCause());
+			throw ioe;
+		} finally {
+			pool.shutdownNow();
+		}
+		Log.v(TAG, blobs.size() + " blobs verified in " + dir + ", " + corrupt.size() + " corrupt.");
+		return corrupt;
+	}
+
+	private static void collect(File dir, List<File> blobs) {
+		File[] children = dir.listFiles();
+		if (children == null) {
+			return;
+		}
+		for (File child : children) {
+			if (child.isDirectory()) {
+				collect(child, blobs);
+			} else if (isBlobName(child.getName())) {
+				blobs.add(child);
+			}
+		}
+	}
+
+	private static String key(File blob) {
+		String name = blob.getName();
+		return name.substring(0, name.length() - ".blob".length());
+	}
+
+	private static String sha1(File file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			IOException ioe = new IOException("SHA-1 not available");
+			ioe.initCause(e);
+			throw ioe;
+		}
+		byte[] buffer = buffers.get();
+		InputStream in = new FileInputStream(file);
+		try {
+			int count;
+			while ((count = in.read(buffer)) != -1) {
+				digest.update(buffer, 0, count);
+			}
+		} finally {
+			in.close();
+		}
+		return Hex.encode(digest.digest());
+	}
+}
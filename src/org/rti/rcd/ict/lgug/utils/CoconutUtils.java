@@ -1,31 +1,26 @@
 package org.rti.rcd.ict.lgug.utils;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
 
+import org.codehaus.jackson.map.ObjectMapper;
 import org.json.JSONException;
-import org.json.JSONObject;
-import org.rti.rcd.ict.lgug.utils.AndCouch;
 
 import com.couchbase.touchdb.TDDatabase;
 import com.couchbase.touchdb.TDServer;
@@ -49,11 +44,16 @@ public class CoconutUtils extends Activity {
 	
 	protected static final String TAG = "CoconutActivity";
 
+	private static final ObjectMapper mapper = new ObjectMapper();
+
 	/**
 	 *  Will check for the existence of a design doc and if it does not exist,
 	 *  upload the json found at dataPath to create it
 	 *  
-	 *  if (dbName.equals(fileName)), then it is a design document and it compares the couchapphash to see if it needs updating
+	 *  For a design document (fileName equals dbName, or docName starts with
+	 *  _design/), the md5 of the asset and the revision it was stored as are
+	 *  kept in a .couchapphash file; while both still match, the asset is not
+	 *  read, parsed or uploaded again.
 	 *  For other documents, it simply puts the file.
 	 *  
 	 * @param dbName - CouchDB name
@@ -64,112 +64,68 @@ public class CoconutUtils extends Activity {
 	public void ensureLoadDoc(String dbName, String hostPortUrl, String docName, String fileName) {
 
 		try {
-
-			//Boolean toUpdate = true;
-			Boolean dDoc = false;
-			String data = null;
-			data = readAsset(getAssets(), fileName);
-			File hashCache = null;
+			File hashCache = couchappHashFile(dbName, fileName);
 			String md5 = null;
+			if (hashCache.exists() || dbName.equals(fileName) || isDesignDoc(docName)) {
+				md5 = md5(Assets.open(getAssets(), fileName));
+				if (isLoaded(hashCache, md5, hostPortUrl + dbName + "/")) {
+					Log.v(TAG, fileName + " is up to date.");
+					return;
+				}
+			}
+
+			// Only parsed when the JSON has to be looked at.
+			Map<String, Object> doc = null;
+			String docUrl = null;
+			if (docName != null) {
+				docUrl = hostPortUrl + dbName + "/" + docName;
+			} else {
+				doc = readJsonAsset(getAssets(), fileName);
+				if (!(doc.get("_id") instanceof String)) {
+					throw new JSONException(fileName + " has no _id");
+				}
+				docName = (String) doc.get("_id");
+				docUrl = hostPortUrl + dbName + "/" + docName;
+				Log.v(TAG, fileName + " has the docName: " + docName);
+				Log.v(TAG, "docUrl: " + docUrl);
+			}
+			String cleanUrl = cleanUrl(docUrl);
 
-//			if (dbName.equals(fileName)) {
-//				dDoc = true;
-//				Log.v(TAG, fileName + " is a design document: " + docName + " .");
-//			} else {
-//				Log.v(TAG, fileName + " is not a design document.");
-//			}
-//
-//			if (dDoc == true) {
-//				hashCache = new File(CouchbaseMobile.dataPath() + "/couchapps/" + dbName + ".couchapphash");				
-//				md5 = md5(data);
-//				String cachedHash;
-//
-//				try {
-//					cachedHash = readFile(hashCache);
-//					toUpdate = !md5.equals(cachedHash);
-//				} catch (Exception e) {
-//					e.printStackTrace();
-//					toUpdate = true;
-//				}
-//			} else {
-//				//TODO: compare to version on server.
-//				toUpdate = true;
-//			}
-			
-			//Log.v(TAG, docName + " toUpdate: " + toUpdate);
+			// Through the shared client, so loading many docs reuses one connection.
+			CouchClient client = CouchClient.getDefault();
+			// HEAD answers with the current _rev as the ETag, without the body.
+			CouchClient.Response req = client.head(cleanUrl).execute();
+			Log.v(TAG, "cleanUrl: " + cleanUrl + " req.status: " + req.getStatus());
 
-			//if (toUpdate == true) {
-				String docUrl = null;
-				if (docName != null) {
-					docUrl = hostPortUrl + dbName + "/" + docName;
+			CouchClient.Response put = null;
+			if (req.getStatus() == 404) {
+				Log.v(TAG, "Uploading " + cleanUrl);
+				if (doc != null) {
+					put = client.put(cleanUrl).jsonBody(doc).execute();
 				} else {
-					JSONObject json = new JSONObject(data);
-					docName = json.getString("_id");
-					//docUrl = url + dbName + "/_design/" + dbName;
-					docUrl = hostPortUrl + dbName + "/" + docName;
-					Log.v(TAG, fileName + " has the docName: " + docName);
-					Log.v(TAG, "docUrl: " + docUrl);
+					put = client.put(cleanUrl).body(Assets.open(getAssets(), fileName), Assets.length(getAssets(), fileName),
+							"application/json").execute();
 				}
-				
-				URL urlObject = new URL(docUrl);
-				String protocol = urlObject.getProtocol();
-				String hostName = urlObject.getHost();
-				int port = urlObject.getPort();
-				String path = urlObject.getPath();
-				String queryString = urlObject.getQuery();
-				
-				URI uri = null;
-				try {
-					uri = new URI(
-							protocol, 
-							null, // userinfo
-							hostName, 
-							port,
-							path,
-							queryString,
-					        null);
-				} catch (URISyntaxException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
+			} else if (req.getStatus() == 200) {
+				Log.v(TAG, cleanUrl + " Found, Updating");
+				if (doc == null) {
+					doc = readJsonAsset(getAssets(), fileName);
 				}
-				//String cleanUrlA = uri.toString();
-				//Log.v(TAG, "URL toString: " + cleanUrlA + " path: " + path);
-				
-//				URI uri2 = null; 
-//				try {
-//					uri2 = new URI(docUrl.replace(" ", "%20"));
-//					//Log.v(TAG, "uri2: " + uri2);
-//				} catch (URISyntaxException e) {
-//					// TODO Auto-generated catch block
-//					e.printStackTrace();
-//				}
-				
-				String cleanUrl = uri.toASCIIString();
-
-				AndCouch req = AndCouch.get(cleanUrl);
-				Log.v(TAG, "cleanUrl: " + cleanUrl + " req.status: " + req.status);
-
-				if (req.status == 404) {
-					Log.v(TAG, "Uploading " + cleanUrl);
-					//AndCouch.put(hostPortUrl + dbName, null);
-					AndCouch.put(cleanUrl, data);
-				} else if (req.status == 200) {
-					Log.v(TAG, cleanUrl + " Found, Updating");
-					String rev = req.json.getString("_rev");
-					JSONObject json = new JSONObject(data);
-					json.put("_rev", rev);
-					//AndCouch.put(hostPortUrl + dbName, null);
-					AndCouch.put(cleanUrl, json.toString());
+				String rev = revision(req);
+				if (rev == null) {
+					rev = client.get(cleanUrl).execute().getJSONObject().getString("_rev");
 				}
+				doc.put("_rev", rev);
+				put = client.put(cleanUrl).jsonBody(doc).execute();
+			}
 
-				if (dDoc == true) {
-					new File(hashCache.getParent()).mkdirs();
-					writeFile(hashCache, md5);
+			if (put != null && put.isSuccessful() && (dbName.equals(fileName) || isDesignDoc(docName))) {
+				if (md5 == null) {
+					md5 = md5(Assets.open(getAssets(), fileName));
 				}
-//			} else {
-//				Log.v(TAG, fileName + " is up to date.");
-//			}
-
+				hashCache.getParentFile().mkdirs();
+				writeFile(hashCache, md5 + "\n" + docName + "\n" + put.getJSONObject().getString("rev") + "\n");
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
 			// There is no design doc to load
@@ -178,14 +134,92 @@ public class CoconutUtils extends Activity {
 		}
 	};
 
-	
+	private static boolean isDesignDoc(String docName) {
+		return docName != null && docName.startsWith("_design/");
+	}
+
+	private File couchappHashFile(String dbName, String fileName) {
+		return new File(getFilesDir(), "couchapps/" + dbName + "/" + fileName.replace('/', '_') + ".couchapphash");
+	}
+
+	/**
+	 * @param hashCache holds the md5 of the asset, the doc _id and the revision it was stored as
+	 * @return true if the asset's md5 is the one in hashCache and the document
+	 * is still at the revision it was stored as
+	 */
+	private static boolean isLoaded(File hashCache, String md5, String dbUrl) {
+		if (!hashCache.exists()) {
+			return false;
+		}
+		try {
+			String[] cached = readFile(hashCache).split("\n");
+			if (cached.length < 3 || !md5.equals(cached[0])) {
+				return false;
+			}
+			CouchClient.Response head = CouchClient.getDefault().head(cleanUrl(dbUrl + cached[1])).execute();
+			return head.getStatus() == 200 && cached[2].equals(revision(head));
+		} catch (IOException e) {
+			Log.w(TAG, "Unable to check " + hashCache, e);
+			return false;
+		}
+	}
+
+	/**
+	 * @return docUrl with its path and query quoted as a URI requires, e.g.
+	 * spaces in a document id
+	 */
+	private static String cleanUrl(String docUrl) throws IOException {
+		URL urlObject = new URL(docUrl);
+		try {
+			return new URI(urlObject.getProtocol(), null, urlObject.getHost(), urlObject.getPort(),
+					urlObject.getPath(), urlObject.getQuery(), null).toASCIIString();
+		} catch (URISyntaxException e) {
+			MalformedURLException mue = new MalformedURLException(docUrl + ": " + e.getMessage());
+			mue.initCause(e);
+			throw mue;
+		}
+	}
+
+	/**
+	 * @return the revision in a document response's ETag, or null if there is none
+	 */
+	private static String revision(CouchClient.Response response) {
+		String etag = response.getHeader("ETag");
+		if (etag == null) {
+			return null;
+		}
+		if (etag.length() >= 2 && etag.startsWith("\"") && etag.endsWith("\"")) {
+			etag = etag.substring(1, etag.length() - 1);
+		}
+		return etag.length() == 0 ? null : etag;
+	}
+
+	/**
+	 * @return the size of an asset stored uncompressed, or -1 if it is compressed
+	 */
+	public static long assetLength(AssetManager assets, String path) {
+		return Assets.length(assets, path);
+	}
+
+	/**
+	 * @return the whole asset decoded as UTF-8
+	 */
 	public static String readAsset(AssetManager assets, String path) throws IOException {
-		InputStream is = assets.open(path);
-		int size = is.available();
-		byte[] buffer = new byte[size];
-		is.read(buffer);
-		is.close();
-		return new String(buffer);
+		return Assets.readString(assets, path);
+	}
+
+	/**
+	 * Parses an asset straight from its mapped or inflating stream, without
+	 * decoding it to a String first.
+	 */
+	@SuppressWarnings("unchecked")
+	public static Map<String, Object> readJsonAsset(AssetManager assets, String path) throws IOException {
+		InputStream in = Assets.open(assets, path);
+		try {
+			return mapper.readValue(in, Map.class);
+		} finally {
+			in.close();
+		}
 	}
 
     public static String readFile(File file) throws IOException {
@@ -209,6 +243,28 @@ public class CoconutUtils extends Activity {
     	out.close();
     }
     
+    /**
+     * Hashes in as it is read, without holding it in memory, and closes it.
+     * @return the md5 in hex
+     */
+    public static String md5(InputStream in) throws IOException {
+        try {
+            MessageDigest algorithm = MessageDigest.getInstance("MD5");
+            byte[] buffer = new byte[8 * 1024];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                algorithm.update(buffer, 0, count);
+            }
+            return Hex.encode(algorithm.digest());
+        } catch (NoSuchAlgorithmException e) {
+            IOException ioe = new IOException("MD5 not available");
+            ioe.initCause(e);
+            throw ioe;
+        } finally {
+            in.close();
+        }
+    }
+
     public static String md5(String input){
         String res = "";
         try {
@@ -231,112 +287,62 @@ public class CoconutUtils extends Activity {
     
 
     /**
-     * extracts a zip archive from the assets dir. Copies to a writable dir first.
-     * @param ctx TODO
-     * @param destinationDirectory TODO
-     * @param argv
+     * extracts a zip archive from the assets dir. Entries are inflated straight
+     * out of the APK; the archive itself is never copied to a writable dir.
+     * @param ctx
+     * @param destinationDirectory
      * @throws Exception 
      */
     public static void unZipFromAssets (Context ctx, String file, String destinationDirectory) throws Exception {
-    	String destinationFilename = extractFromAssets(ctx, file, destinationDirectory);		
-    	try {
-    		unZip(destinationFilename, destinationDirectory);
-    	} catch (Exception e) {
-    		throw new Exception(e);
-    	}
+    	new ZipExtractor(destinationDirectory).extractAsset(ctx.getAssets(), file);
     }
 
 
-	public static String extractFromAssets(Context ctx, String file, String destinationDirectory) throws IOException, FileNotFoundException {
-		final int BUFFER = 2048;
-    	BufferedOutputStream dest = null;
-    	AssetManager assetManager = ctx.getAssets();
-    	InputStream in = assetManager.open(file);	
-    	String destinationFilename = destinationDirectory + File.separator + file;
-		OutputStream out = new FileOutputStream(destinationFilename);
-		byte[] buffer = new byte[1024];
-		int read;
-		while((read = in.read(buffer)) != -1){
-			out.write(buffer, 0, read);
-		}
-		in.close();
-		out.close();
-		return destinationFilename;
-	}
-    
     /**
-     * extracts a zip archive. Does not handle directories
-     * kudos: http://java.sun.com/developer/technicalArticles/Programming/compression/
+     * extracts a zip archive. Now a synonym for {@link #unZip(String, String)},
+     * which creates directories as needed.
      * @param argv
      * @throws IOException 
      */
     public static void unZipNoDirs (String file, String destinationDirectory) throws IOException {
-    	final int BUFFER = 2048;
-    	BufferedOutputStream dest = null;
-    	FileInputStream fis = new FileInputStream(file);
-    	ZipInputStream zis = new ZipInputStream(new BufferedInputStream(fis));
-    	ZipEntry entry;
-    	while((entry = zis.getNextEntry()) != null) {
-    		int count;
-    		byte data[] = new byte[BUFFER];
-    		// write the files to the disk
-    		String destinationFilename = destinationDirectory + File.separator + entry.getName();
-    		FileOutputStream fos = new FileOutputStream(destinationFilename);
-    		dest = new BufferedOutputStream(fos, BUFFER);
-    		while ((count = zis.read(data, 0, BUFFER)) != -1) {
-    			dest.write(data, 0, count);
-    		}
-    		dest.flush();
-    		dest.close();
-    	}
-    	zis.close();
+    	new ZipExtractor(destinationDirectory).extract(new File(file));
     }
     
     /**
-     * kudos: http://www.jondev.net/articles/Unzipping_Files_with_Android_(Programmatically)
+     * Extracts zipFile into destinationDirectory, logging each entry. Blobs
+     * already present are kept.
      * @param zipFile
      * @param destinationDirectory
+     * @return an empty list
+     * @throws IOException 
      */
-    public static void unZip(String zipFile, String destinationDirectory) { 
-    	try  { 
-    		FileInputStream fin = new FileInputStream(zipFile); 
-    		ZipInputStream zin = new ZipInputStream(fin); 
-    		ZipEntry ze = null; 
-    		while ((ze = zin.getNextEntry()) != null) { 
-    			Log.v("Decompress", "Unzipping " + ze.getName()); 
-    			String destinationPath = destinationDirectory + File.separator + ze.getName();
-    			if(ze.isDirectory()) { 
-    				dirChecker(destinationPath); 
-    			} else { 
-    				FileOutputStream fout;
-					try {
-						File outputFile = new File(destinationPath);
-						if (!outputFile.getParentFile().exists()){
-							dirChecker(outputFile.getParentFile().getPath());
-						}
-						fout = new FileOutputStream(destinationPath);
-	    				for (int c = zin.read(); c != -1; c = zin.read()) { 
-	    					fout.write(c); 
-	    				} 
-	    				zin.closeEntry(); 
-	    				fout.close(); 
-					} catch (Exception e) {
-						// ok for now.
-						Log.v("Decompress", "Error: " + e.getMessage()); 
-					}
+    public static List<String> unZip(String zipFile, String destinationDirectory) throws IOException { 
+    	return unZip(zipFile, destinationDirectory, false);
+    }
+
+    /**
+     * Like {@link #unZip(String, String)}, and with verify every blob under
+     * destinationDirectory is then re-hashed and corrupt ones are logged.
+     * @return the keys of corrupt blobs - none unless verify
+     * @throws IOException 
+     */
+    public static List<String> unZip(String zipFile, String destinationDirectory, boolean verify) throws IOException { 
+    	new ZipExtractor(destinationDirectory)
+    		.setContentAddressed(true)
+    		.setProgressListener(new ZipExtractor.ProgressListener() {
+    			public void onEntryExtracted(ZipEntry entry, int index, int total) {
+    				Log.v("Decompress", "Unzipped " + entry.getName());
     			}
-    		} 
-    		zin.close(); 
-    	} catch(Exception e) { 
-    		Log.e("Decompress", "unzip", e); 
-    	} 
-    } 
-     
-    private static void dirChecker(String destinationPath) { 
-    	File f = new File(destinationPath); 
-    	if(!f.isDirectory()) { 
-    		f.mkdirs(); 
-    	} 
+    		})
+    		.extract(new File(zipFile));
+    	if (!verify) {
+    		return new ArrayList<String>();
+    	}
+    	List<String> corrupt = new BlobVerifier(new File(destinationDirectory)).verify();
+    	if (!corrupt.isEmpty()) {
+    		Log.e("Decompress", corrupt.size() + " corrupt blobs in " + destinationDirectory + ": " + corrupt);
+    	}
+    	return corrupt;
     } 
     
     /**
@@ -0,0 +1,1325 @@
+package org.rti.rcd.ict.lgug.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.couchbase.touchdb.TDBody;
+import com.couchbase.touchdb.TDServer;
+import com.couchbase.touchdb.router.TDRouter;
+import com.couchbase.touchdb.router.TDURLConnection;
+import com.couchbase.touchdb.router.TDURLStreamHandlerFactory;
+
+/**
+ * HTTP client for CouchDB and the local TouchDB listener.
+ *
+ * Connections are kept alive and reused: HttpURLConnection keeps idle
+ * connections per host:port, and hands one back for the next request as long
+ * as the previous response was read to the end and its stream closed - which
+ * this client always does - and the connection was not disconnected, which it
+ * never is. At most maxConnectionsPerHost requests are in flight per host:port;
+ * further callers wait for a connection to come free.
+ *
+ * Requests are built with {@link Request}:
+ *
+ * <pre>
+ * Response response = client.put(url).header("If-Match", rev).body(json).execute();
+ * </pre>
+ *
+ * Responses can be read whole ({@link Request#execute()}), or decoded straight
+ * off the socket with Jackson: bound to a type ({@link Request#execute(Class)})
+ * or, for view, _all_docs and _changes responses, one row at a time
+ * ({@link Request#forEachRow}, {@link Request#openRows}), so a large result
+ * is never held as bytes, a String and a parsed tree at once.
+ *
+ * Request bodies are streamed, never copied into one buffer: a byte[],
+ * ByteBuffer or File is sent with a fixed Content-Length in its exact byte
+ * count, and an InputStream of unknown length is sent chunked.
+ *
+ * Any request can also be run asynchronously ({@link Request#executeAsync()}
+ * and friends) on a bounded pool, returning a Future and optionally calling
+ * back. The per-host cap still applies, so fanning out many requests to one
+ * host uses at most maxConnectionsPerHost connections. Cancelling the Future
+ * with mayInterruptIfRunning drops the request's connection.
+ *
+ * Once {@link #setLocalServer} has been called, requests for the local
+ * listener's URLs (and touchdb:// URLs) skip the socket: they are dispatched
+ * straight into a TDRouter on the calling thread, and JSON responses are
+ * handed over as the router's objects, so {@link Request#execute(Class)},
+ * the row methods and {@link Response#getValue()} never see JSON text.
+ * {@link Request#jsonBody} serializes a request body once, straight into the
+ * request.
+ *
+ * Responses are asked for gzip-encoded and decoded transparently; the body
+ * a caller reads is always the identity encoding.
+ *
+ * With an {@link EtagCache} set, GETs read whole ({@link Request#execute()})
+ * are revalidated: a cached body is sent back with its ETag as
+ * If-None-Match, and a 304 is answered from the cache. Responses are only
+ * ever served from the cache on a 304, so they are never stale.
+ *
+ * With an {@link AttachmentCache} set, local GETs of design document
+ * attachments are answered from memory when it holds them, without reaching
+ * the router; the cache drops a document's attachments when it changes.
+ *
+ * A shared instance is available from {@link #getDefault()}.
+ */
+public class CouchClient {
+
+	public static final String TAG = "CouchClient";
+
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 4;
+	public static final int DEFAULT_CONNECT_TIMEOUT = 10 * 1000;
+	public static final int DEFAULT_READ_TIMEOUT = 60 * 1000;
+	public static final int DEFAULT_MAX_THREADS = 8;
+
+	private static final int BUFFER_SIZE = 8 * 1024;
+	private static final int CHUNK_SIZE = 32 * 1024;
+
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	private static CouchClient defaultClient;
+
+	/**
+	 * The async call running on the current thread, if any, so a connection
+	 * opened for it can be dropped when it is cancelled.
+	 */
+	private static final ThreadLocal<Call<?>> currentCall = new ThreadLocal<Call<?>>();
+
+	/**
+	 * The host names the local server's listener is reached by.
+	 */
+	static final List<String> LOCAL_HOSTS = Collections.unmodifiableList(Arrays.asList("127.0.0.1", "localhost", "0.0.0.0"));
+
+	private final ConcurrentHashMap<String, Semaphore> hosts = new ConcurrentHashMap<String, Semaphore>();
+	private volatile int maxConnectionsPerHost;
+	private volatile int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	private volatile int readTimeout = DEFAULT_READ_TIMEOUT;
+	private volatile EtagCache cache;
+	private volatile AttachmentCache attachmentCache;
+	private int maxThreads = DEFAULT_MAX_THREADS;
+	private ExecutorService executor;
+	private volatile TDServer localServer;
+	private volatile int localPort = -1;
+
+	public CouchClient() {
+		setMaxConnectionsPerHost(DEFAULT_MAX_CONNECTIONS_PER_HOST);
+	}
+
+	public static synchronized CouchClient getDefault() {
+		if (defaultClient == null) {
+			defaultClient = new CouchClient();
+		}
+		return defaultClient;
+	}
+
+	/**
+	 * Serves requests for http://127.0.0.1:port/ (or localhost, or 0.0.0.0)
+	 * and touchdb:/// in-process from server, without going through the
+	 * listener. Continuous and longpoll _changes feeds still go through the
+	 * listener, since the router answers those asynchronously.
+	 * @param server null to send everything over HTTP again
+	 */
+	public CouchClient setLocalServer(TDServer server, int port) {
+		if (server != null) {
+			TDURLStreamHandlerFactory.registerSelfIgnoreError();
+		}
+		this.localPort = port;
+		this.localServer = server;
+		return this;
+	}
+
+	private boolean isLocal(URL url) {
+		if (localServer == null) {
+			return false;
+		}
+		if (TDURLStreamHandlerFactory.SCHEME.equals(url.getProtocol())) {
+			return true;
+		}
+		String query = url.getQuery();
+		if (query != null && (query.contains("feed=continuous") || query.contains("feed=longpoll"))) {
+			return false;
+		}
+		return "http".equals(url.getProtocol()) && url.getPort() == localPort
+				&& LOCAL_HOSTS.contains(url.getHost());
+	}
+
+	/**
+	 * Caps concurrent requests per host:port. HttpURLConnection keeps up to
+	 * http.maxConnections (5 unless the app sets it) idle connections per
+	 * host, so with the default of 4 every connection in use can go back to
+	 * its pool.
+	 */
+	public CouchClient setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+		this.maxConnectionsPerHost = Math.max(1, maxConnectionsPerHost);
+		hosts.clear();
+		return this;
+	}
+
+	/**
+	 * @param connectTimeout milliseconds; 0 waits forever
+	 */
+	public CouchClient setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+		return this;
+	}
+
+	/**
+	 * @param readTimeout milliseconds without data before a read fails; 0 waits forever
+	 */
+	public CouchClient setReadTimeout(int readTimeout) {
+		this.readTimeout = readTimeout;
+		return this;
+	}
+
+	/**
+	 * @param cache null to stop caching
+	 */
+	public CouchClient setCache(EtagCache cache) {
+		this.cache = cache;
+		return this;
+	}
+
+	/**
+	 * Answers local GETs of design document attachments from attachmentCache
+	 * when it holds them, before they reach the router.
+	 * @param attachmentCache null to send every local request to the router
+	 */
+	public CouchClient setAttachmentCache(AttachmentCache attachmentCache) {
+		this.attachmentCache = attachmentCache;
+		return this;
+	}
+
+	/**
+	 * Caps the threads running async requests across all hosts. Takes effect
+	 * if set before the first async request.
+	 */
+	public synchronized CouchClient setMaxThreads(int maxThreads) {
+		this.maxThreads = Math.max(1, maxThreads);
+		return this;
+	}
+
+	/**
+	 * Runs async requests on executor instead of the client's own pool.
+	 */
+	public synchronized CouchClient setExecutor(ExecutorService executor) {
+		this.executor = executor;
+		return this;
+	}
+
+	private synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(maxThreads, new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, TAG + "-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return executor;
+	}
+
+	/**
+	 * Stops the client's pool, cancelling async requests that have not started.
+	 */
+	public synchronized void shutdown() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+	/**
+	 * Receives the outcome of an async request, on the thread that ran it.
+	 */
+	public interface Callback<T> {
+		void onSuccess(T result);
+
+		void onFailure(Throwable error);
+	}
+
+	/**
+	 * Runs work on the client's pool - e.g. a sequence of requests that
+	 * depend on each other - with the same cancellation as a single request.
+	 */
+	public <T> Future<T> submit(Callable<T> work, Callback<? super T> callback) {
+		Call<T> call = new Call<T>(work, callback);
+		getExecutor().execute(call);
+		return call;
+	}
+
+	/**
+	 * A request running on the pool. Cancelling it while it runs also drops
+	 * its connection, so a blocked read returns at once.
+	 */
+	private static class Call<T> extends FutureTask<T> {
+		private final Callback<? super T> callback;
+		private volatile HttpURLConnection connection;
+
+		Call(Callable<T> work, Callback<? super T> callback) {
+			super(work);
+			this.callback = callback;
+		}
+
+		@Override
+		public void run() {
+			currentCall.set(this);
+			try {
+				super.run();
+			} finally {
+				currentCall.remove();
+			}
+		}
+
+		void setConnection(HttpURLConnection connection) {
+			this.connection = connection;
+			if (isCancelled()) {
+				connection.disconnect();
+			}
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean cancelled = super.cancel(mayInterruptIfRunning);
+			HttpURLConnection c = connection;
+			if (cancelled && mayInterruptIfRunning && c != null) {
+				c.disconnect();
+			}
+			return cancelled;
+		}
+
+		@Override
+		protected void done() {
+			if (callback == null || isCancelled()) {
+				return;
+			}
+			try {
+				callback.onSuccess(get());
+			} catch (ExecutionException e) {
+				callback.onFailure(e.getCause());
+			} catch (InterruptedException e) {
+				callback.onFailure(e);
+			}
+		}
+	}
+
+	public Request request(String method, String url) {
+		return new Request(this, method, url);
+	}
+
+	public Request get(String url) {
+		return new Request(this, "GET", url);
+	}
+
+	public Request put(String url) {
+		return new Request(this, "PUT", url);
+	}
+
+	public Request post(String url) {
+		return new Request(this, "POST", url);
+	}
+
+	public Request delete(String url) {
+		return new Request(this, "DELETE", url);
+	}
+
+	public Request head(String url) {
+		return new Request(this, "HEAD", url);
+	}
+
+	/**
+	 * Receives the rows of a view, _all_docs or _changes response as they are
+	 * decoded.
+	 */
+	public interface RowHandler {
+
+		/**
+		 * @param row one element of "rows" (or "results" for _changes)
+		 * @return false to stop reading; the rest of the response is discarded
+		 */
+		boolean onRow(Map<String, Object> row) throws IOException;
+	}
+
+	/**
+	 * Thrown by the decoding methods when the server does not answer 2xx.
+	 */
+	public static class ResponseException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		private final int status;
+		private final String body;
+
+		public ResponseException(int status, String body) {
+			super("HTTP " + status + ": " + body);
+			this.status = status;
+			this.body = body;
+		}
+
+		public int getStatus() {
+			return status;
+		}
+
+		public String getBody() {
+			return body;
+		}
+	}
+
+	/**
+	 * Sends request and reads the whole response.
+	 */
+	public Response execute(Request request) throws IOException {
+		URL url = new URL(request.url);
+		if (isLocal(url)) {
+			Response attachment = fromAttachmentCache(request, url);
+			return attachment != null ? attachment : fetch(request);
+		}
+		EtagCache cache = this.cache;
+		if (cache == null) {
+			return fetch(request);
+		}
+		if (!"GET".equals(request.method)) {
+			Response response = fetch(request);
+			if (response.isSuccessful() && !"HEAD".equals(request.method)) {
+				// A write to a document: its cached body is out of date.
+				cache.remove(request.url);
+				int query = request.url.indexOf('?');
+				if (query != -1) {
+					cache.remove(request.url.substring(0, query));
+				}
+			}
+			return response;
+		}
+		EtagCache.Entry cached = request.headers.containsKey("If-None-Match") ? null : cache.get(request.url);
+		Request sent = request;
+		if (cached != null) {
+			sent = request.copy().header("If-None-Match", cached.getEtag());
+		}
+		Response response = fetch(sent);
+		if (response.getStatus() == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+			Response hit = new Response(HttpURLConnection.HTTP_OK, response.headers, cached.getBody(), null);
+			hit.fromCache = true;
+			return hit;
+		}
+		String etag = response.getHeader("ETag");
+		if (response.getStatus() == HttpURLConnection.HTTP_OK && etag != null) {
+			cache.put(request.url, etag, response.getBody());
+		} else if (cached != null) {
+			cache.remove(request.url);
+		}
+		return response;
+	}
+
+	/**
+	 * @return the answer to a local GET of /db/_design/ddoc/attachment from
+	 * the attachment cache - a 304 if If-None-Match is its ETag - or null if
+	 * the request has to go to the router
+	 */
+	private Response fromAttachmentCache(Request request, URL url) {
+		AttachmentCache attachmentCache = this.attachmentCache;
+		if (attachmentCache == null || !"GET".equals(request.method) || url.getQuery() != null) {
+			return null;
+		}
+		String[] attachment = AttachmentCache.parseAttachmentPath(url.getPath());
+		if (attachment == null) {
+			return null;
+		}
+		AttachmentCache.Entry entry = attachmentCache.get(attachment[0], attachment[1], attachment[2]);
+		if (entry == null) {
+			return null;
+		}
+		Response response;
+		if (entry.getEtag().equals(request.headers.get("If-None-Match"))) {
+			response = new Response(HttpURLConnection.HTTP_NOT_MODIFIED, entry.getHeaders(), new byte[0], null);
+		} else {
+			response = new Response(HttpURLConnection.HTTP_OK, entry.getHeaders(), entry.getBody(), null);
+		}
+		response.fromCache = true;
+		return response;
+	}
+
+	private Response fetch(Request request) throws IOException {
+		Exchange exchange = open(request);
+		try {
+			Object value = exchange.value();
+			if (value != null) {
+				return new Response(exchange.status, exchange.connection.getHeaderFields(), null, value);
+			}
+			byte[] body = readFully(exchange.connection, exchange.body());
+			return new Response(exchange.status, exchange.connection.getHeaderFields(), body, null);
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Sends request and binds the JSON response to type as it is read.
+	 * @throws ResponseException if the status is not 2xx
+	 */
+	public <T> T execute(Request request, Class<T> type) throws IOException {
+		Exchange exchange = open(request);
+		try {
+			Object decoded = exchange.value();
+			if (decoded != null && exchange.isSuccessful()) {
+				return convert(decoded, type);
+			}
+			InputStream in = exchange.successBody();
+			T value = mapper.readValue(new KeepOpenInputStream(in), type);
+			drain(in);
+			return value;
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private static <T> T convert(Object value, Class<T> type) {
+		return type.isInstance(value) ? type.cast(value) : mapper.convertValue(value, type);
+	}
+
+	/**
+	 * Sends request and hands each row of the response to handler as soon as
+	 * it has been decoded.
+	 * @return the number of rows handled
+	 * @throws ResponseException if the status is not 2xx
+	 */
+	public int forEachRow(Request request, RowHandler handler) throws IOException {
+		Rows rows = openRows(request);
+		try {
+			int count = 0;
+			while (rows.hasNext()) {
+				count++;
+				if (!handler.onRow(rows.next())) {
+					break;
+				}
+			}
+			return count;
+		} finally {
+			rows.close();
+		}
+	}
+
+	/**
+	 * Sends request and returns an iterator over the rows of the response,
+	 * decoded on demand. The caller must close it; until then it holds one of
+	 * the host's connections.
+	 * @throws ResponseException if the status is not 2xx
+	 */
+	public Rows openRows(Request request) throws IOException {
+		Exchange exchange = open(request);
+		try {
+			return new Rows(exchange);
+		} catch (IOException e) {
+			exchange.close();
+			throw e;
+		} catch (RuntimeException e) {
+			exchange.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Sends the request and reads the status line. On success the caller owns
+	 * the returned exchange - and a connection permit - until it is closed.
+	 */
+	private Exchange open(Request request) throws IOException {
+		URL url = new URL(request.url);
+		if (isLocal(url)) {
+			return openLocal(request, url);
+		}
+		Semaphore permits = permitsFor(url);
+		try {
+			permits.acquire();
+		} catch (InterruptedException e) {
+			InterruptedIOException ioe = new InterruptedIOException(request.method + " " + request.url + " interrupted");
+			ioe.initCause(e);
+			throw ioe;
+		}
+		boolean opened = false;
+		try {
+			HttpURLConnection c = (HttpURLConnection) url.openConnection();
+			Call<?> call = currentCall.get();
+			if (call != null) {
+				call.setConnection(c);
+			}
+			c.setRequestMethod(request.method);
+			c.setUseCaches(false);
+			c.setConnectTimeout(connectTimeout);
+			c.setReadTimeout(readTimeout);
+			c.setRequestProperty("Accept", "application/json");
+			// Set explicitly, so that the body is left encoded on every
+			// platform version and decoded in Exchange.body().
+			c.setRequestProperty("Accept-Encoding", "gzip");
+			for (Map.Entry<String, String> header : request.headers.entrySet()) {
+				c.setRequestProperty(header.getKey(), header.getValue());
+			}
+			if (request.body != null) {
+				long length = request.body.length();
+				c.setDoOutput(true);
+				if (length >= 0 && length <= Integer.MAX_VALUE) {
+					c.setFixedLengthStreamingMode((int) length);
+				} else {
+					c.setChunkedStreamingMode(CHUNK_SIZE);
+				}
+				OutputStream out = c.getOutputStream();
+				try {
+					request.body.writeTo(out);
+				} finally {
+					out.close();
+				}
+			}
+			Exchange exchange = new Exchange(c, c.getResponseCode(), permits);
+			opened = true;
+			return exchange;
+		} finally {
+			if (!opened) {
+				permits.release();
+			}
+		}
+	}
+
+	/**
+	 * Runs request through a TDRouter on this thread. Not subject to the
+	 * per-host cap, as there is no connection to share.
+	 */
+	private Exchange openLocal(Request request, URL url) throws IOException {
+		TDURLConnection c = (TDURLConnection) new URL(TDURLStreamHandlerFactory.SCHEME + "://" + url.getFile())
+				.openConnection();
+		c.setRequestMethod(request.method);
+		c.setRequestProperty("Accept", "application/json");
+		for (Map.Entry<String, String> header : request.headers.entrySet()) {
+			c.setRequestProperty(header.getKey(), header.getValue());
+		}
+		if (request.body != null) {
+			c.setDoOutput(true);
+			OutputStream out = c.getOutputStream();
+			try {
+				request.body.writeTo(out);
+			} finally {
+				out.close();
+			}
+		}
+		new TDRouter(localServer, c).start();
+		return new LocalExchange(c);
+	}
+
+	private Semaphore permitsFor(URL url) {
+		int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+		String key = url.getHost() + ":" + port;
+		Semaphore permits = hosts.get(key);
+		if (permits == null) {
+			Semaphore created = new Semaphore(maxConnectionsPerHost, true);
+			permits = hosts.putIfAbsent(key, created);
+			if (permits == null) {
+				permits = created;
+			}
+		}
+		return permits;
+	}
+
+	private static byte[] readFully(HttpURLConnection c, InputStream in) throws IOException {
+		if (in == null) {
+			return new byte[0];
+		}
+		int length = c.getContentLength();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(length > 0 ? length : BUFFER_SIZE);
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int count;
+		while ((count = in.read(buffer)) != -1) {
+			out.write(buffer, 0, count);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Reads what is left of a response (usually a trailing newline) so the
+	 * connection can be reused.
+	 */
+	private static void drain(InputStream in) throws IOException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		while (in.read(buffer) != -1) {
+			// discard
+		}
+	}
+
+	/**
+	 * A request body, written straight to the connection.
+	 */
+	private interface Body {
+
+		/**
+		 * @return the length in bytes, or -1 to send the body chunked
+		 */
+		long length();
+
+		void writeTo(OutputStream out) throws IOException;
+	}
+
+	private static class BytesBody implements Body {
+		private final byte[] bytes;
+
+		BytesBody(byte[] bytes) {
+			this.bytes = bytes;
+		}
+
+		public long length() {
+			return bytes.length;
+		}
+
+		public void writeTo(OutputStream out) throws IOException {
+			out.write(bytes);
+		}
+	}
+
+	private static class BufferBody implements Body {
+		private final ByteBuffer buffer;
+
+		BufferBody(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		public long length() {
+			return buffer.remaining();
+		}
+
+		/**
+		 * Writes the buffer's remaining bytes without moving its position, so
+		 * the request can be sent again.
+		 */
+		public void writeTo(OutputStream out) throws IOException {
+			if (buffer.hasArray()) {
+				out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+				return;
+			}
+			ByteBuffer source = buffer.duplicate();
+			byte[] chunk = new byte[Math.min(CHUNK_SIZE, source.remaining())];
+			while (source.hasRemaining()) {
+				int count = Math.min(chunk.length, source.remaining());
+				source.get(chunk, 0, count);
+				out.write(chunk, 0, count);
+			}
+		}
+	}
+
+	private static class FileBody implements Body {
+		private final File file;
+
+		FileBody(File file) {
+			this.file = file;
+		}
+
+		public long length() {
+			return file.length();
+		}
+
+		public void writeTo(OutputStream out) throws IOException {
+			InputStream in = new FileInputStream(file);
+			try {
+				copy(in, out);
+			} finally {
+				in.close();
+			}
+		}
+	}
+
+	/**
+	 * Can only be sent once; the stream is closed after it has been written.
+	 */
+	private static class StreamBody implements Body {
+		private final InputStream in;
+		private final long length;
+
+		StreamBody(InputStream in, long length) {
+			this.in = in;
+			this.length = length;
+		}
+
+		public long length() {
+			return length;
+		}
+
+		public void writeTo(OutputStream out) throws IOException {
+			try {
+				copy(in, out);
+			} finally {
+				in.close();
+			}
+		}
+	}
+
+	/**
+	 * Serialized once, on first use, so its exact length is known.
+	 */
+	private static class ValueBody implements Body {
+		private final Object value;
+		private byte[] json;
+
+		ValueBody(Object value) {
+			this.value = value;
+		}
+
+		private synchronized byte[] json() throws IOException {
+			if (json == null) {
+				json = mapper.writeValueAsBytes(value);
+			}
+			return json;
+		}
+
+		public long length() {
+			try {
+				return json().length;
+			} catch (IOException e) {
+				throw new IllegalArgumentException("Can not serialize " + value, e);
+			}
+		}
+
+		public void writeTo(OutputStream out) throws IOException {
+			out.write(json());
+		}
+	}
+
+	private static void copy(InputStream in, OutputStream out) throws IOException {
+		byte[] buffer = new byte[CHUNK_SIZE];
+		int count;
+		while ((count = in.read(buffer)) != -1) {
+			out.write(buffer, 0, count);
+		}
+	}
+
+	/**
+	 * Keeps Jackson from closing the body when it is done parsing, before the
+	 * rest of the response has been drained.
+	 */
+	private static class KeepOpenInputStream extends FilterInputStream {
+		KeepOpenInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public void close() {
+			// The Exchange closes the body.
+		}
+	}
+
+	/**
+	 * A request that has been sent and whose status is known. Closing it
+	 * closes the body stream - returning the connection to the pool if the
+	 * body was read to the end - and gives back the connection permit.
+	 */
+	private static class Exchange {
+		final HttpURLConnection connection;
+		final int status;
+		private final Semaphore permits;
+		private InputStream body;
+		private boolean closed;
+
+		/**
+		 * @param permits null if the exchange holds no connection permit
+		 */
+		Exchange(HttpURLConnection connection, int status, Semaphore permits) {
+			this.connection = connection;
+			this.status = status;
+			this.permits = permits;
+		}
+
+		boolean isSuccessful() {
+			return status >= 200 && status < 300;
+		}
+
+		/**
+		 * @return the response already decoded, or null if it has to be read from {@link #body()}
+		 */
+		Object value() {
+			return null;
+		}
+
+		/**
+		 * @return the response body, or the error body for 4xx/5xx; null if there is none
+		 */
+		InputStream body() throws IOException {
+			if (body == null) {
+				body = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+				if (body != null && "gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+					body = gunzip(body);
+				}
+			}
+			return body;
+		}
+
+		/**
+		 * @return in decoded, or in itself if it is empty, as the body of a
+		 * HEAD or 304 response is despite its Content-Encoding
+		 */
+		private static InputStream gunzip(InputStream in) throws IOException {
+			PushbackInputStream pushback = new PushbackInputStream(in, 1);
+			int first = pushback.read();
+			if (first == -1) {
+				return pushback;
+			}
+			pushback.unread(first);
+			return new GZIPInputStream(pushback, BUFFER_SIZE);
+		}
+
+		/**
+		 * @return the body of a 2xx response
+		 * @throws ResponseException with the error body otherwise
+		 */
+		InputStream successBody() throws IOException {
+			if (!isSuccessful()) {
+				byte[] error = readFully(connection, body());
+				throw new ResponseException(status, new String(error, "UTF-8"));
+			}
+			InputStream in = body();
+			if (in == null) {
+				throw new ResponseException(status, "");
+			}
+			return in;
+		}
+
+		synchronized void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			try {
+				if (body != null) {
+					body.close();
+				}
+			} catch (IOException e) {
+				// The connection is simply not reused.
+			} finally {
+				if (permits != null) {
+					permits.release();
+				}
+			}
+		}
+	}
+
+	/**
+	 * A request answered in-process by a TDRouter. A JSON response is kept
+	 * as the objects the router built; anything else, such as an attachment,
+	 * is read from the router's response stream.
+	 */
+	private static class LocalExchange extends Exchange {
+		private final TDBody responseBody;
+
+		LocalExchange(TDURLConnection connection) {
+			super(connection, connection.getResponseCode(), null);
+			this.responseBody = connection.getResponseBody();
+		}
+
+		@Override
+		Object value() {
+			return responseBody == null ? null : responseBody.getObject();
+		}
+
+		@Override
+		InputStream body() throws IOException {
+			if (responseBody != null) {
+				return new ByteArrayInputStream(responseBody.getJson());
+			}
+			return ((TDURLConnection) connection).getResponseInputStream();
+		}
+	}
+
+	/**
+	 * The rows of a view, _all_docs or _changes (normal or longpoll) response,
+	 * decoded one at a time. Top-level fields other than the row array are
+	 * skipped.
+	 */
+	public static class Rows implements Iterator<Map<String, Object>> {
+		private final Exchange exchange;
+		private final JsonParser parser;
+		private final Iterator<?> decoded;
+		private boolean inRows;
+		private Map<String, Object> next;
+
+		Rows(Exchange exchange) throws IOException {
+			this.exchange = exchange;
+			Object value = exchange.value();
+			if (value instanceof Map && exchange.isSuccessful()) {
+				Map<?, ?> response = (Map<?, ?>) value;
+				Object rows = response.containsKey("rows") ? response.get("rows") : response.get("results");
+				this.parser = null;
+				this.decoded = rows instanceof List ? ((List<?>) rows).iterator() : null;
+				inRows = decoded != null;
+				return;
+			}
+			this.decoded = null;
+			this.parser = mapper.getJsonFactory().createJsonParser(new KeepOpenInputStream(exchange.successBody()));
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new IOException("Expected a JSON object from " + exchange.connection.getURL());
+			}
+			inRows = findRows();
+		}
+
+		/**
+		 * Advances to the start of the "rows" or "results" array.
+		 * @return false if the object ended without one
+		 */
+		private boolean findRows() throws IOException {
+			JsonToken token;
+			while ((token = parser.nextToken()) == JsonToken.FIELD_NAME) {
+				String name = parser.getCurrentName();
+				token = parser.nextToken();
+				if (token == JsonToken.START_ARRAY && ("rows".equals(name) || "results".equals(name))) {
+					return true;
+				}
+				parser.skipChildren();
+			}
+			return false;
+		}
+
+		@SuppressWarnings("unchecked")
+		public boolean hasNext() {
+			if (next != null) {
+				return true;
+			}
+			if (decoded != null) {
+				while (inRows) {
+					Object row = decoded.hasNext() ? decoded.next() : null;
+					if (row == null) {
+						inRows = decoded.hasNext();
+					} else if (row instanceof Map) {
+						next = (Map<String, Object>) row;
+						return true;
+					}
+				}
+				return false;
+			}
+			try {
+				while (inRows) {
+					JsonToken token = parser.nextToken();
+					if (token == JsonToken.START_OBJECT) {
+						next = parser.readValueAs(Map.class);
+						return true;
+					}
+					if (token == JsonToken.END_ARRAY || token == null) {
+						inRows = false;
+					} else {
+						parser.skipChildren();
+					}
+				}
+				return false;
+			} catch (IOException e) {
+				throw new IllegalStateException("Error decoding " + exchange.connection.getURL(), e);
+			}
+		}
+
+		public Map<String, Object> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Map<String, Object> row = next;
+			next = null;
+			return row;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		/**
+		 * Releases the connection. If the rows were read to the end the
+		 * connection is kept alive for the next request.
+		 */
+		public void close() {
+			try {
+				if (parser != null) {
+					if (!inRows && next == null) {
+						drain(exchange.body());
+					}
+					parser.close();
+				}
+			} catch (IOException e) {
+				// The connection is simply not reused.
+			} finally {
+				exchange.close();
+			}
+		}
+	}
+
+	/**
+	 * A request under construction. Reusable - execute may be called more than
+	 * once - unless its body is an InputStream.
+	 */
+	public static class Request {
+		private final CouchClient client;
+		private final String method;
+		private final String url;
+		private final Map<String, String> headers = new LinkedHashMap<String, String>();
+		private Body body;
+
+		Request(CouchClient client, String method, String url) {
+			this.client = client;
+			this.method = method;
+			this.url = url;
+		}
+
+		/**
+		 * @return a request with the same method, URL, headers and body
+		 */
+		Request copy() {
+			Request copy = new Request(client, method, url);
+			copy.headers.putAll(headers);
+			copy.body = body;
+			return copy;
+		}
+
+		public String getMethod() {
+			return method;
+		}
+
+		public String getUrl() {
+			return url;
+		}
+
+		public Request header(String name, String value) {
+			headers.put(name, value);
+			return this;
+		}
+
+		/**
+		 * Sends json, encoded as UTF-8, as the request body.
+		 */
+		public Request body(String json) {
+			if (json == null) {
+				return body((Body) null, null);
+			}
+			try {
+				return body(json.getBytes("UTF-8"), "application/json; charset=UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				throw new AssertionError(e);
+			}
+		}
+
+		/**
+		 * Sends value - a Map, List or anything Jackson can bind - as JSON.
+		 */
+		public Request jsonBody(Object value) {
+			return body(value == null ? null : new ValueBody(value), "application/json");
+		}
+
+		/**
+		 * @param contentType sent unless a Content-Type header is already set
+		 */
+		public Request body(byte[] bytes, String contentType) {
+			return body(new BytesBody(bytes), contentType);
+		}
+
+		/**
+		 * Sends the buffer's remaining bytes. The buffer is not consumed.
+		 */
+		public Request body(ByteBuffer buffer, String contentType) {
+			return body(new BufferBody(buffer), contentType);
+		}
+
+		public Request body(File file, String contentType) {
+			return body(new FileBody(file), contentType);
+		}
+
+		/**
+		 * Streams in as the body and closes it once sent.
+		 * @param length the number of bytes in, or -1 if unknown to send it chunked
+		 */
+		public Request body(InputStream in, long length, String contentType) {
+			return body(new StreamBody(in, length), contentType);
+		}
+
+		private Request body(Body body, String contentType) {
+			this.body = body;
+			if (body != null && contentType != null && !headers.containsKey("Content-Type")) {
+				header("Content-Type", contentType);
+			}
+			return this;
+		}
+
+		public Response execute() throws IOException {
+			return client.execute(this);
+		}
+
+		public <T> T execute(Class<T> type) throws IOException {
+			return client.execute(this, type);
+		}
+
+		public int forEachRow(RowHandler handler) throws IOException {
+			return client.forEachRow(this, handler);
+		}
+
+		public Rows openRows() throws IOException {
+			return client.openRows(this);
+		}
+
+		public Future<Response> executeAsync() {
+			return executeAsync(null);
+		}
+
+		public Future<Response> executeAsync(Callback<? super Response> callback) {
+			return client.submit(new Callable<Response>() {
+				public Response call() throws IOException {
+					return execute();
+				}
+			}, callback);
+		}
+
+		public <T> Future<T> executeAsync(final Class<T> type, Callback<? super T> callback) {
+			return client.submit(new Callable<T>() {
+				public T call() throws IOException {
+					return execute(type);
+				}
+			}, callback);
+		}
+
+		public Future<Integer> forEachRowAsync(final RowHandler handler, Callback<? super Integer> callback) {
+			return client.submit(new Callable<Integer>() {
+				public Integer call() throws IOException {
+					return Integer.valueOf(forEachRow(handler));
+				}
+			}, callback);
+		}
+	}
+
+	/**
+	 * A fully read response.
+	 */
+	public static class Response {
+		private final int status;
+		private final Map<String, List<String>> headers;
+		private byte[] body;
+		private Object value;
+		private boolean fromCache;
+
+		/**
+		 * @param body the body as read, or null if value is given instead
+		 * @param value the body already decoded, from an in-process request
+		 */
+		Response(int status, Map<String, List<String>> headers, byte[] body, Object value) {
+			this.status = status;
+			this.headers = headers == null ? Collections.<String, List<String>>emptyMap() : headers;
+			this.body = body;
+			this.value = value;
+		}
+
+		public int getStatus() {
+			return status;
+		}
+
+		public boolean isSuccessful() {
+			return status >= 200 && status < 300;
+		}
+
+		/**
+		 * @return true if the body is a cached one: the server answered 304 to
+		 * a revalidation, or a local attachment was served from memory
+		 */
+		public boolean isFromCache() {
+			return fromCache;
+		}
+
+		/**
+		 * @return the first value of the named header, matched case-insensitively, or null
+		 */
+		public String getHeader(String name) {
+			for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+				if (name.equalsIgnoreCase(header.getKey()) && !header.getValue().isEmpty()) {
+					return header.getValue().get(0);
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * @return the headers as name/value pairs, the status line excluded
+		 */
+		public String[][] getHeaderPairs() {
+			List<String[]> pairs = new ArrayList<String[]>();
+			for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+				if (header.getKey() != null) {
+					for (String value : header.getValue()) {
+						pairs.add(new String[] { header.getKey(), value });
+					}
+				}
+			}
+			return pairs.toArray(new String[pairs.size()][]);
+		}
+
+		public synchronized byte[] getBody() {
+			if (body == null) {
+				try {
+					body = mapper.writeValueAsBytes(value);
+				} catch (IOException e) {
+					throw new IllegalStateException("Can not serialize the response", e);
+				}
+			}
+			return body;
+		}
+
+		/**
+		 * @return the body decoded as JSON (a Map, List, String, Number or
+		 * Boolean); null if there is no body
+		 */
+		public synchronized Object getValue() throws IOException {
+			if (value == null && body.length > 0) {
+				value = mapper.readValue(body, Object.class);
+			}
+			return value;
+		}
+
+		public String getBodyAsString() {
+			try {
+				return new String(getBody(), "UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				throw new AssertionError(e);
+			}
+		}
+
+		/**
+		 * @return the body as a JSON object; empty if there is no body
+		 */
+		public JSONObject getJSONObject() throws JSONException {
+			return getBody().length == 0 ? new JSONObject() : new JSONObject(getBodyAsString());
+		}
+
+		@Override
+		public String toString() {
+			return "HTTPResult -> status: " + Integer.toString(status);
+		}
+	}
+}
@@ -0,0 +1,250 @@
+package org.rti.rcd.ict.lgug.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * Response bodies by URL, kept with their ETag so they can be revalidated
+ * with If-None-Match instead of downloaded again.
+ *
+ * Two tiers, each bounded in bytes and evicted least recently used first:
+ * bodies in memory, and, if a directory is given, bodies in files there,
+ * which survive restarts. A body too big for the memory tier goes to disk
+ * only. The disk tier's recency is the files' modification time.
+ */
+public class EtagCache {
+
+	public static final String TAG = "EtagCache";
+
+	private static final String SUFFIX = ".etag";
+
+	/**
+	 * A cached body and the ETag it was served with.
+	 */
+	public static class Entry {
+		private final String etag;
+		private final byte[] body;
+
+		Entry(String etag, byte[] body) {
+			this.etag = etag;
+			this.body = body;
+		}
+
+		public String getEtag() {
+			return etag;
+		}
+
+		public byte[] getBody() {
+			return body;
+		}
+	}
+
+	private final int maxMemoryBytes;
+	private final File dir;
+	private final long maxDiskBytes;
+
+	private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private long memoryBytes;
+
+	/**
+	 * File name to size, least recently used first. Read from dir on first use.
+	 */
+	private LinkedHashMap<String, Long> disk;
+	private long diskBytes;
+
+	public EtagCache(int maxMemoryBytes) {
+		this(maxMemoryBytes, null, 0);
+	}
+
+	/**
+	 * @param dir where the disk tier is kept, or null for memory only
+	 */
+	public EtagCache(int maxMemoryBytes, File dir, long maxDiskBytes) {
+		this.maxMemoryBytes = maxMemoryBytes;
+		this.dir = dir;
+		this.maxDiskBytes = maxDiskBytes;
+	}
+
+	/**
+	 * @return the entry for url, or null
+	 */
+	public synchronized Entry get(String url) {
+		Entry entry = memory.get(url);
+		if (entry != null || dir == null) {
+			return entry;
+		}
+		String name = fileName(url);
+		if (!disk().containsKey(name)) {
+			return null;
+		}
+		File file = new File(dir, name);
+		try {
+			entry = read(file, url);
+		} catch (IOException e) {
+			Log.w(TAG, "Dropping unreadable " + file, e);
+		}
+		if (entry == null) {
+			removeFile(name);
+			return null;
+		}
+		// Marks it recently used.
+		disk.get(name);
+		file.setLastModified(System.currentTimeMillis());
+		putInMemory(url, entry);
+		return entry;
+	}
+
+	public synchronized void put(String url, String etag, byte[] body) {
+		Entry entry = new Entry(etag, body);
+		putInMemory(url, entry);
+		if (dir != null && body.length <= maxDiskBytes) {
+			String name = fileName(url);
+			removeFile(name);
+			try {
+				write(new File(dir, name), url, entry);
+				long size = new File(dir, name).length();
+				disk().put(name, size);
+				diskBytes += size;
+				trimDisk();
+			} catch (IOException e) {
+				Log.w(TAG, "Unable to cache " + url, e);
+			}
+		}
+	}
+
+	public synchronized void remove(String url) {
+		Entry entry = memory.remove(url);
+		if (entry != null) {
+			memoryBytes -= entry.body.length;
+		}
+		if (dir != null) {
+			removeFile(fileName(url));
+		}
+	}
+
+	private void putInMemory(String url, Entry entry) {
+		Entry old = memory.remove(url);
+		if (old != null) {
+			memoryBytes -= old.body.length;
+		}
+		if (entry.body.length > maxMemoryBytes) {
+			return;
+		}
+		memory.put(url, entry);
+		memoryBytes += entry.body.length;
+		Iterator<Entry> eldest = memory.values().iterator();
+		while (memoryBytes > maxMemoryBytes && eldest.hasNext()) {
+			memoryBytes -= eldest.next().body.length;
+			eldest.remove();
+		}
+	}
+
+	private LinkedHashMap<String, Long> disk() {
+		if (disk != null) {
+			return disk;
+		}
+		disk = new LinkedHashMap<String, Long>(16, 0.75f, true);
+		diskBytes = 0;
+		dir.mkdirs();
+		File[] files = dir.listFiles();
+		if (files != null) {
+			Arrays.sort(files, new Comparator<File>() {
+				public int compare(File a, File b) {
+					long difference = a.lastModified() - b.lastModified();
+					return difference < 0 ? -1 : difference > 0 ? 1 : 0;
+				}
+			});
+			for (File file : files) {
+				if (file.getName().endsWith(SUFFIX)) {
+					disk.put(file.getName(), file.length());
+					diskBytes += file.length();
+				}
+			}
+		}
+		trimDisk();
+		return disk;
+	}
+
+	private void trimDisk() {
+		Iterator<Map.Entry<String, Long>> eldest = disk.entrySet().iterator();
+		while (diskBytes > maxDiskBytes && eldest.hasNext()) {
+			Map.Entry<String, Long> file = eldest.next();
+			diskBytes -= file.getValue();
+			eldest.remove();
+			new File(dir, file.getKey()).delete();
+		}
+	}
+
+	private void removeFile(String name) {
+		Long size = disk().remove(name);
+		if (size != null) {
+			diskBytes -= size;
+			new File(dir, name).delete();
+		}
+	}
+
+	/**
+	 * Each file holds the URL - to tell hash collisions apart - the ETag and
+	 * the body.
+	 */
+	private static void write(File file, String url, Entry entry) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			out.writeUTF(url);
+			out.writeUTF(entry.etag);
+			out.writeInt(entry.body.length);
+			out.write(entry.body);
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("Can not write " + file);
+		}
+	}
+
+	/**
+	 * @return the entry in file, or null if it is for another URL
+	 */
+	private static Entry read(File file, String url) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (!url.equals(in.readUTF())) {
+				return null;
+			}
+			String etag = in.readUTF();
+			byte[] body = new byte[in.readInt()];
+			in.readFully(body);
+			return new Entry(etag, body);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static String fileName(String url) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			return Hex.encode(digest.digest(url.getBytes("UTF-8"))) + SUFFIX;
+		} catch (NoSuchAlgorithmException e) {
+			throw new AssertionError(e);
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+	}
+}
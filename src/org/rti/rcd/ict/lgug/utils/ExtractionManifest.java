@@ -0,0 +1,140 @@
+package org.rti.rcd.ict.lgug.utils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+
+import android.util.Log;
+
+/**
+ * Records the CRC32 and size, taken from the zip headers, of every entry a
+ * ZipExtractor has written. When a new APK ships an updated archive the
+ * extractor compares against this to rewrite only the entries that changed
+ * and delete the ones that disappeared.
+ *
+ * Stored as one "crc size name" line per entry next to the extracted files.
+ */
+public class ExtractionManifest {
+
+	public static final String TAG = "ExtractionManifest";
+
+	private final File file;
+	private final Map<String, long[]> entries = new LinkedHashMap<String, long[]>();
+
+	public ExtractionManifest(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Reads a manifest. A missing or unreadable file gives an empty manifest,
+	 * which makes the extractor fall back to "write whatever is missing".
+	 * Malformed lines, such as one cut short by a crash, are skipped.
+	 */
+	public static ExtractionManifest load(File file) {
+		ExtractionManifest manifest = new ExtractionManifest(file);
+		if (!file.exists()) {
+			return manifest;
+		}
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					int first = line.indexOf(' ');
+					int second = line.indexOf(' ', first + 1);
+					if (first < 0 || second < 0) {
+						continue;
+					}
+					try {
+						long crc = Long.parseLong(line.substring(0, first), 16);
+						long size = Long.parseLong(line.substring(first + 1, second));
+						manifest.entries.put(line.substring(second + 1), new long[] { crc, size });
+					} catch (NumberFormatException e) {
+						Log.w(TAG, "Skipping malformed line in " + file + ": " + line);
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (Exception e) {
+			Log.w(TAG, "Ignoring unreadable manifest " + file, e);
+			manifest.entries.clear();
+		}
+		return manifest;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public boolean isEmpty() {
+		return entries.isEmpty();
+	}
+
+	public boolean contains(String name) {
+		return entries.containsKey(name);
+	}
+
+	/**
+	 * @return true if entry has the CRC and size recorded for its name. Entries
+	 *         whose CRC is not known up front (streamed with a data descriptor)
+	 *         are never current.
+	 */
+	public boolean isCurrent(ZipEntry entry) {
+		long[] record = entries.get(entry.getName());
+		return record != null && entry.getCrc() != -1
+				&& record[0] == entry.getCrc() && record[1] == entry.getSize();
+	}
+
+	public synchronized void put(ZipEntry entry) {
+		entries.put(entry.getName(), new long[] { entry.getCrc(), entry.getSize() });
+	}
+
+	public synchronized void remove(String name) {
+		entries.remove(name);
+	}
+
+	public Set<String> names() {
+		return Collections.unmodifiableSet(entries.keySet());
+	}
+
+	/**
+	 * Writes the manifest to a temporary file and renames it into place, so a
+	 * crash never leaves a truncated manifest behind.
+	 */
+	public synchronized void save() throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+		try {
+			for (Map.Entry<String, long[]> entry : entries.entrySet()) {
+				writer.write(format(entry.getKey(), entry.getValue()[0], entry.getValue()[1]));
+			}
+		} finally {
+			writer.close();
+		}
+		if (!tmp.renameTo(file)) {
+			throw new IOException("Can not write manifest " + file);
+		}
+	}
+
+	/**
+	 * @return the line recording entry, newline included
+	 */
+	static String format(ZipEntry entry) {
+		return format(entry.getName(), entry.getCrc(), entry.getSize());
+	}
+
+	private static String format(String name, long crc, long size) {
+		return Long.toHexString(crc) + " " + size + " " + name + "\n";
+	}
+}
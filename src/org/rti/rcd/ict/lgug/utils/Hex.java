@@ -0,0 +1,24 @@
+package org.rti.rcd.ict.lgug.utils;
+
+/**
+ * Lower-case hex, the form CouchDB and TDBlobStore use for digests.
+ */
+public final class Hex {
+
+	private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+
+	private Hex() {
+	}
+
+	/**
+	 * @return two lower-case hex digits per byte, leading zeros kept
+	 */
+	public static String encode(byte[] bytes) {
+		char[] hex = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			hex[2 * i] = DIGITS[(bytes[i] >> 4) & 0xf];
+			hex[2 * i + 1] = DIGITS[bytes[i] & 0xf];
+		}
+		return new String(hex);
+	}
+}
@@ -0,0 +1,157 @@
+package org.rti.rcd.ict.lgug.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.zip.ZipEntry;
+
+import android.util.Log;
+
+/**
+ * Makes an extraction resumable. ZipExtractor writes entries into a staging
+ * directory and appends each one to this journal once it is complete. When
+ * every entry is in, the staging tree is moved over the real one - whole
+ * directories are renamed in one step when they do not exist yet - and the
+ * journal is deleted.
+ *
+ * If the app is killed part way, the next extraction finds the journal, keeps
+ * every staged entry whose size still matches, and only extracts the rest.
+ * Staged entries that were streamed with a data descriptor are compared with
+ * the archive as it is read instead.
+ * Nothing half-written ever appears outside the staging directory.
+ */
+public class InstallJournal {
+
+	public static final String TAG = "InstallJournal";
+
+	private final File file;
+	private final File stagingDir;
+	private final ExtractionManifest completed;
+	private Writer writer;
+
+	private InstallJournal(File file, File stagingDir) {
+		this.file = file;
+		this.stagingDir = stagingDir;
+		this.completed = ExtractionManifest.load(file);
+	}
+
+	/**
+	 * Opens the journal for extracting name into dir, picking up where an
+	 * interrupted extraction left off.
+	 */
+	public static InstallJournal open(File dir, String name) {
+		InstallJournal journal = new InstallJournal(new File(dir, "." + name + ".journal"),
+				new File(dir, "." + name + ".staging"));
+		if (!journal.completed.isEmpty()) {
+			Log.d(TAG, "Resuming " + name + ": " + journal.completed.names().size() + " entries already staged.");
+		}
+		return journal;
+	}
+
+	public File getStagingDir() {
+		return stagingDir;
+	}
+
+	/**
+	 * @return true if entry was staged by an earlier run and is still intact;
+	 *         always false for an entry whose CRC is not known yet
+	 */
+	public boolean isComplete(ZipEntry entry) {
+		return completed.isCurrent(entry)
+				&& new File(stagingDir, entry.getName()).length() == entry.getSize();
+	}
+
+	/**
+	 * @return the file an earlier run staged for the entry called name, or
+	 *         null. An entry streamed with a data descriptor can not be
+	 *         checked with {@link #isComplete} before it is read; it is
+	 *         compared with this file instead.
+	 */
+	public File getStaged(String name) {
+		File staged = new File(stagingDir, name);
+		return completed.contains(name) && staged.isFile() ? staged : null;
+	}
+
+	/**
+	 * Records that entry has been fully written to the staging directory.
+	 * @throws IOException if the staged file is not the size the archive says
+	 */
+	public synchronized void record(ZipEntry entry) throws IOException {
+		File staged = new File(stagingDir, entry.getName());
+		if (entry.getSize() != -1 && staged.length() != entry.getSize()) {
+			throw new IOException("Short write for " + entry.getName() + ": "
+					+ staged.length() + " of " + entry.getSize() + " bytes");
+		}
+		if (writer == null) {
+			writer = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+		}
+		writer.write(ExtractionManifest.format(entry));
+		writer.flush();
+		completed.put(entry);
+	}
+
+	/**
+	 * Moves everything staged into dir, replacing what is there.
+	 */
+	public void publish(File dir) throws IOException {
+		close();
+		File[] children = stagingDir.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				move(child, new File(dir, child.getName()));
+			}
+		}
+	}
+
+	/**
+	 * Deletes the journal and the (by now empty) staging directory.
+	 */
+	public void finish() throws IOException {
+		close();
+		delete(stagingDir);
+		if (file.exists() && !file.delete()) {
+			throw new IOException("Can not delete " + file);
+		}
+	}
+
+	private void close() throws IOException {
+		if (writer != null) {
+			writer.close();
+			writer = null;
+		}
+	}
+
+	private static void move(File from, File to) throws IOException {
+		if (!to.exists()) {
+			if (from.renameTo(to)) {
+				return;
+			}
+		} else if (from.isDirectory() && to.isDirectory()) {
+			File[] children = from.listFiles();
+			if (children != null) {
+				for (File child : children) {
+					move(child, new File(to, child.getName()));
+				}
+			}
+			from.delete();
+			return;
+		} else if (from.renameTo(to) || (to.delete() && from.renameTo(to))) {
+			return;
+		}
+		throw new IOException("Can not move " + from + " to " + to);
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		if (file.exists() && !file.delete()) {
+			Log.w(TAG, "Can not delete " + file);
+		}
+	}
+}
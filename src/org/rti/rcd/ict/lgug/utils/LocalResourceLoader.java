@@ -0,0 +1,197 @@
+package org.rti.rcd.ict.lgug.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import android.util.Log;
+
+import com.couchbase.touchdb.TDBlobKey;
+import com.couchbase.touchdb.TDBlobStore;
+import com.couchbase.touchdb.TDDatabase;
+import com.couchbase.touchdb.TDRevision;
+import com.couchbase.touchdb.TDServer;
+import com.couchbase.touchdb.support.Base64;
+
+/**
+ * Resolves the couchapp's own resources - design document attachments under
+ * http://0.0.0.0:&lt;port&gt;/&lt;db&gt;/_design/&lt;ddoc&gt;/ - in-process, for
+ * a WebView to load without a round trip through the listener's socket and
+ * threads.
+ *
+ * An attachment held in the {@link AttachmentCache} is served from memory;
+ * any other is streamed from the database's blob store, by the digest in its
+ * stub. Everything else - views, documents, writes, URLs with a query - is
+ * left to the listener, as a WebView does not say which method a request
+ * uses: answering a PUT of /db/doc as a GET would lose the write.
+ *
+ * Given a {@link StartupTracer}, it also answers {@value #TRACE_PATH} with
+ * the recent launches as JSON. That path is not a database, so the listener
+ * never sees it.
+ */
+public class LocalResourceLoader {
+
+	public static final String TAG = "LocalResourceLoader";
+
+	public static final String TRACE_PATH = "/_startup_trace";
+
+	private static final String SHA1_PREFIX = "sha1-";
+
+	/**
+	 * A resolved resource, as WebResourceResponse takes it.
+	 */
+	public static class Resource {
+		private final String mimeType;
+		private final String encoding;
+		private final InputStream data;
+
+		Resource(String contentType, InputStream data) {
+			String mimeType = contentType != null ? contentType : "application/octet-stream";
+			String encoding = null;
+			int parameters = mimeType.indexOf(';');
+			if (parameters != -1) {
+				for (String parameter : mimeType.substring(parameters + 1).split(";")) {
+					String[] pair = parameter.trim().split("=", 2);
+					if (pair.length == 2 && "charset".equalsIgnoreCase(pair[0].trim())) {
+						encoding = pair[1].trim().replace("\"", "");
+					}
+				}
+				mimeType = mimeType.substring(0, parameters).trim();
+			}
+			this.mimeType = mimeType.toLowerCase(Locale.US);
+			this.encoding = encoding != null ? encoding : "UTF-8";
+			this.data = data;
+		}
+
+		public String getMimeType() {
+			return mimeType;
+		}
+
+		public String getEncoding() {
+			return encoding;
+		}
+
+		public InputStream getData() {
+			return data;
+		}
+	}
+
+	private final TDServer server;
+	private final int port;
+	private final AttachmentCache cache;
+	private final StartupTracer tracer;
+
+	/**
+	 * @param port the listener's port
+	 * @param cache null to stream every attachment from the blob store
+	 * @param tracer null to leave {@value #TRACE_PATH} to the listener
+	 */
+	public LocalResourceLoader(TDServer server, int port, AttachmentCache cache, StartupTracer tracer) {
+		this.server = server;
+		this.port = port;
+		this.cache = cache;
+		this.tracer = tracer;
+	}
+
+	/**
+	 * @return the resource at url, or null if it has to be loaded from the
+	 * listener: it is not the startup trace or a design document attachment
+	 * of this server, or it could not be found here
+	 */
+	public Resource load(String url) {
+		String path = localPath(url);
+		if (path == null) {
+			return null;
+		}
+		if (tracer != null && TRACE_PATH.equals(path)) {
+			try {
+				return new Resource("application/json", new ByteArrayInputStream(tracer.toJson()));
+			} catch (IOException e) {
+				Log.w(TAG, "Unable to serve the startup trace", e);
+				return null;
+			}
+		}
+		String[] attachment = AttachmentCache.parseAttachmentPath(path);
+		if (attachment == null) {
+			return null;
+		}
+		try {
+			if (cache != null) {
+				AttachmentCache.Entry entry = cache.get(attachment[0], attachment[1], attachment[2]);
+				if (entry != null) {
+					return new Resource(entry.getContentType(), new ByteArrayInputStream(entry.getBody()));
+				}
+			}
+			return stream(attachment[0], attachment[1], attachment[2]);
+		} catch (RuntimeException e) {
+			// The listener answers, or reports the error itself.
+			Log.w(TAG, "Unable to load " + url + " in-process", e);
+			return null;
+		}
+	}
+
+	/**
+	 * @return the path of url if it is for this server and has no query, or
+	 * null if the listener has to answer it
+	 */
+	private String localPath(String url) {
+		URL parsed;
+		try {
+			parsed = new URL(url);
+		} catch (MalformedURLException e) {
+			return null;
+		}
+		if (!"http".equals(parsed.getProtocol()) || parsed.getPort() != port
+				|| !CouchClient.LOCAL_HOSTS.contains(parsed.getHost()) || parsed.getQuery() != null) {
+			return null;
+		}
+		return parsed.getPath();
+	}
+
+	@SuppressWarnings("unchecked")
+	private Resource stream(String dbName, String docId, String name) {
+		TDDatabase db = server.getExistingDatabaseNamed(dbName);
+		if (db == null || !db.open()) {
+			return null;
+		}
+		TDRevision rev = db.getDocumentWithIDAndRev(docId, null, EnumSet.noneOf(TDDatabase.TDContentOptions.class));
+		if (rev == null || !(rev.getProperties().get("_attachments") instanceof Map)) {
+			return null;
+		}
+		Object stub = ((Map<String, Object>) rev.getProperties().get("_attachments")).get(name);
+		if (!(stub instanceof Map)) {
+			return null;
+		}
+		Map<String, Object> attachment = (Map<String, Object>) stub;
+		Object digest = attachment.get("digest");
+		if (!(digest instanceof String) || !((String) digest).startsWith(SHA1_PREFIX)) {
+			return null;
+		}
+		TDBlobStore blobs = db.getAttachments();
+		try {
+			TDBlobKey key = new TDBlobKey(Base64.decode(((String) digest).substring(SHA1_PREFIX.length())));
+			InputStream in = blobs.blobStreamForKey(key);
+			if (in == null) {
+				return null;
+			}
+			if ("gzip".equals(attachment.get("encoding"))) {
+				try {
+					in = new GZIPInputStream(in);
+				} catch (IOException e) {
+					in.close();
+					throw e;
+				}
+			}
+			return new Resource((String) attachment.get("content_type"), in);
+		} catch (IOException e) {
+			Log.w(TAG, "Unable to read " + dbName + "/" + docId + "/" + name + " from " + blobs.getPath(), e);
+			return null;
+		}
+	}
+}
@@ -0,0 +1,229 @@
+package org.rti.rcd.ict.lgug.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Random access to a zip archive held in a buffer, normally an asset that
+ * {@link Assets#map} mapped out of the APK.
+ *
+ * Entries come from the central directory, so they have their CRC and sizes
+ * before any of their data is read - unlike a ZipInputStream's, which only
+ * get them at the end of the entry when the archive was written with data
+ * descriptors. Each entry is read through its own view of the buffer, so
+ * entries can be inflated on several threads at once, and its CRC is
+ * checked when it has been read to the end.
+ *
+ * Only what the bundled archives use is supported: stored and deflated
+ * entries, no ZIP64, no encryption.
+ */
+final class MappedZip {
+
+	private static final int LOCAL_HEADER_SIG = 0x04034b50;
+	private static final int CENTRAL_HEADER_SIG = 0x02014b50;
+	private static final int END_HEADER_SIG = 0x06054b50;
+	private static final int LOCAL_HEADER_LEN = 30;
+	private static final int CENTRAL_HEADER_LEN = 46;
+	private static final int END_HEADER_LEN = 22;
+	private static final int MAX_COMMENT_LEN = 0xffff;
+
+	private final String name;
+	private final ByteBuffer buffer;
+	private final List<ZipEntry> entries;
+	// Keyed by identity: nothing stops two entries from having the same name.
+	private final Map<ZipEntry, Integer> headerOffsets;
+
+	MappedZip(String name, ByteBuffer buffer) throws ZipException {
+		this.name = name;
+		this.buffer = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+		int end = findEndHeader();
+		int count = this.buffer.getShort(end + 10) & 0xffff;
+		long cdSize = this.buffer.getInt(end + 12) & 0xffffffffL;
+		long cdOffset = this.buffer.getInt(end + 16) & 0xffffffffL;
+		if (cdOffset + cdSize > end) {
+			throw new ZipException("Central directory out of range in " + name);
+		}
+		List<ZipEntry> list = new ArrayList<ZipEntry>(count);
+		Map<ZipEntry, Integer> offsets = new IdentityHashMap<ZipEntry, Integer>(count);
+		int pos = (int) cdOffset;
+		int limit = (int) (cdOffset + cdSize);
+		for (int i = 0; i < count; i++) {
+			if (pos + CENTRAL_HEADER_LEN > limit || this.buffer.getInt(pos) != CENTRAL_HEADER_SIG) {
+				throw new ZipException("Bad central directory entry " + i + " in " + name);
+			}
+			int nameLen = this.buffer.getShort(pos + 28) & 0xffff;
+			int extraLen = this.buffer.getShort(pos + 30) & 0xffff;
+			int commentLen = this.buffer.getShort(pos + 32) & 0xffff;
+			long compressedSize = this.buffer.getInt(pos + 20) & 0xffffffffL;
+			long size = this.buffer.getInt(pos + 24) & 0xffffffffL;
+			long headerOffset = this.buffer.getInt(pos + 42) & 0xffffffffL;
+			if (compressedSize == 0xffffffffL || size == 0xffffffffL || headerOffset == 0xffffffffL) {
+				throw new ZipException("ZIP64 is not supported: " + name);
+			}
+			if (pos + CENTRAL_HEADER_LEN + nameLen > limit) {
+				throw new ZipException("Bad central directory entry " + i + " in " + name);
+			}
+			ZipEntry entry = new ZipEntry(string(pos + CENTRAL_HEADER_LEN, nameLen));
+			entry.setMethod(this.buffer.getShort(pos + 10) & 0xffff);
+			entry.setCrc(this.buffer.getInt(pos + 16) & 0xffffffffL);
+			entry.setSize(size);
+			entry.setCompressedSize(compressedSize);
+			list.add(entry);
+			offsets.put(entry, (int) headerOffset);
+			pos += CENTRAL_HEADER_LEN + nameLen + extraLen + commentLen;
+		}
+		entries = Collections.unmodifiableList(list);
+		headerOffsets = offsets;
+	}
+
+	String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the entries in central directory order
+	 */
+	List<ZipEntry> entries() {
+		return entries;
+	}
+
+	/**
+	 * @return the entry's content, which throws a ZipException at its end if
+	 *         its CRC does not match
+	 */
+	InputStream getInputStream(ZipEntry entry) throws ZipException {
+		Integer headerOffset = headerOffsets.get(entry);
+		if (headerOffset == null) {
+			throw new ZipException("Entry not in " + name + ": " + entry.getName());
+		}
+		int offset = headerOffset;
+		if (offset + LOCAL_HEADER_LEN > buffer.limit() || buffer.getInt(offset) != LOCAL_HEADER_SIG) {
+			throw new ZipException("Bad local header for " + entry.getName() + " in " + name);
+		}
+		long dataOffset = offset + LOCAL_HEADER_LEN
+				+ (buffer.getShort(offset + 26) & 0xffff) + (buffer.getShort(offset + 28) & 0xffff);
+		long dataEnd = dataOffset + entry.getCompressedSize();
+		if (dataEnd > buffer.limit()) {
+			throw new ZipException("Data out of range for " + entry.getName() + " in " + name);
+		}
+		ByteBuffer data = buffer.duplicate();
+		data.limit((int) dataEnd).position((int) dataOffset);
+		InputStream in = new Assets.ByteBufferInputStream(data);
+		if (entry.getMethod() == ZipEntry.DEFLATED) {
+			// A nowrap Inflater wants one extra byte past the end of the data.
+			in = new EntryInflaterInputStream(new SequenceInputStream(in, new ByteArrayInputStream(new byte[1])));
+		} else if (entry.getMethod() != ZipEntry.STORED) {
+			throw new ZipException("Unsupported compression method " + entry.getMethod()
+					+ " for " + entry.getName() + " in " + name);
+		}
+		return new CrcCheckingInputStream(in, entry);
+	}
+
+	/**
+	 * @return the offset of the end of central directory record
+	 */
+	private int findEndHeader() throws ZipException {
+		int length = buffer.limit();
+		int stop = Math.max(0, length - END_HEADER_LEN - MAX_COMMENT_LEN);
+		for (int pos = length - END_HEADER_LEN; pos >= stop; pos--) {
+			if (buffer.getInt(pos) == END_HEADER_SIG) {
+				return pos;
+			}
+		}
+		throw new ZipException("Not a zip archive: " + name);
+	}
+
+	private String string(int offset, int length) {
+		byte[] bytes = new byte[length];
+		ByteBuffer view = buffer.duplicate();
+		view.position(offset);
+		view.get(bytes);
+		try {
+			return new String(bytes, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * Releases the native Inflater as soon as the entry is closed.
+	 */
+	private static class EntryInflaterInputStream extends InflaterInputStream {
+		private boolean closed;
+
+		EntryInflaterInputStream(InputStream in) {
+			super(in, new Inflater(true), 8 * 1024);
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!closed) {
+				closed = true;
+				inf.end();
+				super.close();
+			}
+		}
+	}
+
+	/**
+	 * Compares the CRC and size of what was read with the entry's once the
+	 * end is reached, as ZipInputStream does.
+	 */
+	private class CrcCheckingInputStream extends CheckedInputStream {
+		private final ZipEntry entry;
+		private long count;
+		private boolean checked;
+
+		CrcCheckingInputStream(InputStream in, ZipEntry entry) {
+			super(in, new CRC32());
+			this.entry = entry;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b == -1) {
+				check();
+			} else {
+				count++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) throws IOException {
+			int n = super.read(bytes, offset, length);
+			if (n == -1) {
+				check();
+			} else {
+				count += n;
+			}
+			return n;
+		}
+
+		private void check() throws ZipException {
+			if (!checked) {
+				checked = true;
+				if (count != entry.getSize() || getChecksum().getValue() != entry.getCrc()) {
+					throw new ZipException("CRC mismatch for " + entry.getName() + " in " + name);
+				}
+			}
+		}
+	}
+}
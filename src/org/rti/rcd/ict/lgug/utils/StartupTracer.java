@@ -0,0 +1,184 @@
+package org.rti.rcd.ict.lgug.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.codehaus.jackson.map.ObjectMapper;
+
+import android.util.Log;
+
+/**
+ * Times the phases of one launch against System.nanoTime, which unlike the
+ * wall clock is monotonic and not moved by the user or network time.
+ *
+ * A phase is either a span (start it with {@link #start}, close it with
+ * {@link #end}) or a point in time ({@link #mark}). Only the first occurrence
+ * of a phase name is kept, so "page_loaded" means the first time the page
+ * finished loading.
+ *
+ * {@link #persist} folds this launch into a ring buffer of the last capacity
+ * launches kept as a JSON array in a file, e.g.
+ *
+ * <pre>
+ * [{"started": 1334512345678, "release": "1.0",
+ *   "phases": {"server": {"at": 12.5, "duration": 40.1}, "page_loaded": {"at": 2300.2}}}]
+ * </pre>
+ *
+ * where "at" is milliseconds since the tracer was created and "duration" is
+ * in milliseconds, both with microsecond precision.
+ */
+public class StartupTracer {
+
+	public static final String TAG = "StartupTracer";
+
+	public static final int DEFAULT_CAPACITY = 20;
+
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	private final File file;
+	private final int capacity;
+	private final String release;
+	private final long origin = System.nanoTime();
+	private final long started = System.currentTimeMillis();
+	private final Map<String, Map<String, Double>> phases = new LinkedHashMap<String, Map<String, Double>>();
+
+	/**
+	 * @param file where the ring buffer of launches is kept
+	 * @param release the app version, so regressions can be tied to a release
+	 */
+	public StartupTracer(File file, int capacity, String release) {
+		this.file = file;
+		this.capacity = Math.max(1, capacity);
+		this.release = release;
+	}
+
+	/**
+	 * @return a start time to hand back to {@link #end}
+	 */
+	public long start() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Records phase as having run from start until now.
+	 * @return true if this was the first time phase was recorded
+	 */
+	public boolean end(String phase, long start) {
+		long now = System.nanoTime();
+		Map<String, Double> timing = new LinkedHashMap<String, Double>();
+		timing.put("at", millis(start - origin));
+		timing.put("duration", millis(now - start));
+		return record(phase, timing);
+	}
+
+	/**
+	 * Records phase as having happened now.
+	 * @return true if this was the first time phase was recorded
+	 */
+	public boolean mark(String phase) {
+		Map<String, Double> timing = new LinkedHashMap<String, Double>();
+		timing.put("at", millis(System.nanoTime() - origin));
+		return record(phase, timing);
+	}
+
+	private synchronized boolean record(String phase, Map<String, Double> timing) {
+		if (phases.containsKey(phase)) {
+			return false;
+		}
+		phases.put(phase, timing);
+		Log.v(TAG, phase + ": " + timing);
+		return true;
+	}
+
+	/**
+	 * @return this launch as it appears in the ring buffer
+	 */
+	public synchronized Map<String, Object> toMap() {
+		Map<String, Object> launch = new LinkedHashMap<String, Object>();
+		launch.put("started", started);
+		launch.put("release", release);
+		launch.put("phases", new LinkedHashMap<String, Map<String, Double>>(phases));
+		return launch;
+	}
+
+	/**
+	 * Writes this launch into the ring buffer, replacing what an earlier call
+	 * wrote for it and dropping the oldest launches beyond capacity. Safe to
+	 * call as often as phases come in.
+	 * @return the launches now in the buffer, oldest first
+	 */
+	public synchronized List<Object> persist() throws IOException {
+		List<Object> launches = getLaunches();
+		File tmp = new File(file.getPath() + ".tmp");
+		OutputStream out = new FileOutputStream(tmp);
+		try {
+			mapper.writeValue(out, launches);
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			throw new IOException("Can not write " + file);
+		}
+		return launches;
+	}
+
+	/**
+	 * @return the launches in the buffer with this one folded in, oldest
+	 *         first, as {@link #persist} would write them
+	 */
+	public synchronized List<Object> getLaunches() {
+		List<Object> launches = load();
+		if (!launches.isEmpty()) {
+			Object last = launches.get(launches.size() - 1);
+			if (last instanceof Map && Long.valueOf(started).equals(toLong(((Map<?, ?>) last).get("started")))) {
+				launches.remove(launches.size() - 1);
+			}
+		}
+		launches.add(toMap());
+		while (launches.size() > capacity) {
+			launches.remove(0);
+		}
+		return launches;
+	}
+
+	/**
+	 * @return {@link #getLaunches} as a JSON array
+	 */
+	public byte[] toJson() throws IOException {
+		return mapper.writeValueAsBytes(getLaunches());
+	}
+
+	@SuppressWarnings("unchecked")
+	private List<Object> load() {
+		if (!file.exists()) {
+			return new ArrayList<Object>();
+		}
+		try {
+			InputStream in = new FileInputStream(file);
+			try {
+				return mapper.readValue(in, List.class);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Starting a new trace file; " + file + " is unreadable", e);
+			return new ArrayList<Object>();
+		}
+	}
+
+	private static Long toLong(Object value) {
+		return value instanceof Number ? Long.valueOf(((Number) value).longValue()) : null;
+	}
+
+	private static Double millis(long nanos) {
+		return Double.valueOf(Math.round(nanos / 1000.0) / 1000.0);
+	}
+}
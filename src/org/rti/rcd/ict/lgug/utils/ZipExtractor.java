@@ -0,0 +1,580 @@
+package org.rti.rcd.ict.lgug.utils;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import android.content.res.AssetManager;
+import android.util.Log;
+
+/**
+ * The one zip extractor used by the app. The CoconutUtils unZip helpers are
+ * thin wrappers around it.
+ *
+ * Entries are inflated on a pool sized to the number of cores, from a
+ * ZipFile on disk or from an archive in the assets dir read straight out of
+ * the APK through its central directory (see {@link MappedZip}). Every
+ * thread copies through one reusable 64 KB buffer, and directories are
+ * created once.
+ *
+ * Progress is reported to an optional {@link ProgressListener}, always in
+ * archive order and always from the thread that called extract.
+ *
+ * With an {@link ExtractionManifest} the extraction is incremental: entries
+ * whose CRC and size match what was extracted last time are left alone, and
+ * files for entries no longer in the archive are deleted - except
+ * content-addressed blobs, which are left to TouchDB's compaction.
+ *
+ * With an {@link InstallJournal} the extraction is resumable: entries are
+ * written to a staging directory and journaled as they complete, and only
+ * moved into outputDir once all of them are in. A rerun after a crash skips
+ * whatever the journal says is already staged.
+ *
+ * A streamed entry with a data descriptor has no CRC or size until it has
+ * been read, so neither the manifest nor the journal can vouch for it up
+ * front. Instead it is compared with the copy already staged or extracted
+ * as it is inflated, and only written from the first byte that differs.
+ *
+ * When content-addressed, attachment blobs (&lt;sha1&gt;.blob) already on disk
+ * with the entry's size are not rewritten: the name fixes the content.
+ */
+public class ZipExtractor {
+
+	public static final String TAG = "ZipExtractor";
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * One copy buffer per thread, reused for every entry it extracts.
+	 */
+	private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[BUFFER_SIZE];
+		}
+	};
+
+	/**
+	 * What a streamed entry is compared with is read into this one.
+	 */
+	private static final ThreadLocal<byte[]> compareBuffers = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[BUFFER_SIZE];
+		}
+	};
+
+	/**
+	 * Receives extraction progress.
+	 */
+	public interface ProgressListener {
+
+		/**
+		 * Called once per file entry, after it has been written.
+		 * @param index zero-based position among the file entries
+		 * @param total number of file entries, or -1 when streaming
+		 */
+		void onEntryExtracted(ZipEntry entry, int index, int total);
+	}
+
+	private final File outputDir;
+	private String canonicalOutputDir;
+	private ProgressListener listener;
+	private ExtractionManifest manifest;
+	private InstallJournal journal;
+	private boolean contentAddressed;
+	private int threads = Runtime.getRuntime().availableProcessors();
+
+	public ZipExtractor(File outputDir) {
+		this.outputDir = outputDir;
+	}
+
+	public ZipExtractor(String outputDir) {
+		this(new File(outputDir));
+	}
+
+	public ZipExtractor setProgressListener(ProgressListener listener) {
+		this.listener = listener;
+		return this;
+	}
+
+	/**
+	 * Makes extraction incremental against the manifest, which is rewritten
+	 * once the archive has been extracted successfully.
+	 */
+	public ZipExtractor setManifest(ExtractionManifest manifest) {
+		this.manifest = manifest;
+		return this;
+	}
+
+	/**
+	 * Stages entries through journal instead of writing them straight into
+	 * outputDir, so an interrupted extraction can be resumed.
+	 */
+	public ZipExtractor setJournal(InstallJournal journal) {
+		this.journal = journal;
+		return this;
+	}
+
+	/**
+	 * Skips blob entries whose file already exists with the size the central
+	 * directory gives, whatever the manifest says; use {@link BlobVerifier} to
+	 * check their content. A streamed blob, whose size is not known up front,
+	 * is compared with the file instead.
+	 */
+	public ZipExtractor setContentAddressed(boolean contentAddressed) {
+		this.contentAddressed = contentAddressed;
+		return this;
+	}
+
+	/**
+	 * Caps the worker pool; defaults to the number of cores. 1 extracts on the calling thread.
+	 */
+	public ZipExtractor setThreads(int threads) {
+		this.threads = Math.max(1, threads);
+		return this;
+	}
+
+	/**
+	 * @return the number of files written
+	 */
+	public int extract(File archive) throws IOException {
+		ZipFile zip = new ZipFile(archive);
+		try {
+			return extract(zip);
+		} finally {
+			zip.close();
+		}
+	}
+
+	/**
+	 * Extracts an archive from the assets dir without copying it out of the
+	 * APK. aapt stores .zip files uncompressed, so the archive is mapped and
+	 * read through its central directory, which gives every entry its CRC and
+	 * size up front even where the local headers defer them to a data
+	 * descriptor. An asset aapt did compress is streamed instead.
+	 * @return the number of files written
+	 */
+	public int extractAsset(AssetManager assets, String asset) throws IOException {
+		ByteBuffer mapped = Assets.map(assets, asset);
+		if (mapped == null) {
+			return extractStream(Assets.open(assets, asset));
+		}
+		final MappedZip zip = new MappedZip(asset, mapped);
+		return extract(zip.getName(), zip.entries(), new EntrySource() {
+			public InputStream open(ZipEntry entry) throws IOException {
+				return zip.getInputStream(entry);
+			}
+		});
+	}
+
+	/**
+	 * Extracts every entry of a zip on disk. The caller keeps ownership of zip
+	 * and must close it.
+	 * @return the number of files written
+	 */
+	public int extract(final ZipFile zip) throws IOException {
+		List<ZipEntry> entries = new ArrayList<ZipEntry>(zip.size());
+		for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements();) {
+			entries.add(e.nextElement());
+		}
+		return extract(zip.getName(), entries, new EntrySource() {
+			public InputStream open(ZipEntry entry) throws IOException {
+				return zip.getInputStream(entry);
+			}
+		});
+	}
+
+	private int extract(String name, List<ZipEntry> entries, EntrySource source) throws IOException {
+		List<ZipEntry> files = prepare(entries);
+		int total = files.size();
+		int poolSize = Math.min(threads, total);
+		if (poolSize <= 1) {
+			for (int i = 0; i < total; i++) {
+				extractEntry(source, files.get(i));
+				entryExtracted(files.get(i), i, total);
+			}
+		} else {
+			extractInParallel(name, source, files, poolSize);
+		}
+		finish(entries);
+		return total;
+	}
+
+	private void extractInParallel(String name, EntrySource source, List<ZipEntry> files, int poolSize) throws IOException {
+		int total = files.size();
+		ExecutorService pool = Executors.newFixedThreadPool(poolSize);
+		try {
+			List<Future<ZipEntry>> pending = new ArrayList<Future<ZipEntry>>(total);
+			for (ZipEntry entry : files) {
+				pending.add(pool.submit(new EntryTask(source, entry)));
+			}
+			// Report in archive order, whatever order the workers finish in.
+			for (int i = 0; i < total; i++) {
+				entryExtracted(pending.get(i).get(), i, total);
+			}
+		} catch (InterruptedException e) {
+			InterruptedIOException ioe = new InterruptedIOException("Extraction of " + name + " interrupted");
+			ioe.initCause(e);
+			throw ioe;
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			IOException ioe = new IOException("Extraction of " + name + " failed");
+			ioe.initCause(cause);
+			throw ioe;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Extracts a zip read sequentially from a stream, then closes it.
+	 * @return the number of files written
+	 */
+	public int extractStream(InputStream in) throws IOException {
+		ZipInputStream zin = new ZipInputStream(new BufferedInputStream(in, BUFFER_SIZE));
+		List<ZipEntry> entries = new ArrayList<ZipEntry>();
+		Set<File> dirs = new HashSet<File>();
+		int count = 0;
+		try {
+			ZipEntry entry;
+			while ((entry = zin.getNextEntry()) != null) {
+				entries.add(entry);
+				File target = targetFile(entry);
+				File dir = entry.isDirectory() ? target : target.getParentFile();
+				if (dirs.add(dir)) {
+					createDir(dir);
+				}
+				if (entry.isDirectory() || isUpToDate(entry)) {
+					continue;
+				}
+				// The CRC of an entry with a data descriptor is only known once
+				// it has been read, so a copy that may be current is compared
+				// with it as it streams by instead.
+				File existing = entry.getCrc() == -1 ? existingCopy(entry) : null;
+				if (existing == null) {
+					copy(zin, target);
+				} else if (!update(zin, existing, target)) {
+					continue;
+				}
+				entryWritten(entry);
+				entryExtracted(entry, count++, -1);
+			}
+		} finally {
+			zin.close();
+		}
+		finish(entries);
+		return count;
+	}
+
+	/**
+	 * Creates every directory the entries need and returns the file entries
+	 * that have to be written. Doing this once up front keeps the workers from
+	 * racing on mkdirs.
+	 */
+	private List<ZipEntry> prepare(List<ZipEntry> entries) throws IOException {
+		List<ZipEntry> files = new ArrayList<ZipEntry>(entries.size());
+		Set<File> dirs = new LinkedHashSet<File>();
+		for (ZipEntry entry : entries) {
+			File target = targetFile(entry);
+			if (entry.isDirectory()) {
+				dirs.add(target);
+			} else if (!isUpToDate(entry)) {
+				dirs.add(target.getParentFile());
+				files.add(entry);
+			}
+		}
+		for (File dir : dirs) {
+			createDir(dir);
+		}
+		return files;
+	}
+
+	/**
+	 * An entry is left alone if an interrupted run already staged it, if it is
+	 * a content-addressed blob that is already present, or if its file exists
+	 * and either the manifest says it was extracted from identical content, or
+	 * the manifest has never seen it. The last adopts files from installs that
+	 * predate manifests instead of overwriting them.
+	 */
+	private boolean isUpToDate(ZipEntry entry) throws IOException {
+		if (journal != null && journal.isComplete(entry)) {
+			return true;
+		}
+		File file = outputFile(entry.getName());
+		if (isBlob(entry.getName()) && file.isFile() && file.length() == entry.getSize()) {
+			return true;
+		}
+		if (manifest == null || !file.exists()) {
+			return false;
+		}
+		return manifest.isCurrent(entry) || !manifest.contains(entry.getName());
+	}
+
+	/**
+	 * @return the file a streamed entry whose CRC is not known yet may already
+	 *         be in: what an interrupted run staged, or else its output file
+	 *         if it is a blob or the manifest would keep it when current; null
+	 *         if there is none
+	 */
+	private File existingCopy(ZipEntry entry) throws IOException {
+		File staged = journal == null ? null : journal.getStaged(entry.getName());
+		if (staged != null) {
+			return staged;
+		}
+		File file = outputFile(entry.getName());
+		return (manifest != null || isBlob(entry.getName())) && file.isFile() ? file : null;
+	}
+
+	private boolean isBlob(String name) {
+		return contentAddressed && BlobVerifier.isBlobName(name);
+	}
+
+	/**
+	 * Moves staged entries into place and records what was extracted. The
+	 * journal is only dropped once the manifest is saved.
+	 */
+	private void finish(List<ZipEntry> entries) throws IOException {
+		if (journal != null) {
+			journal.publish(outputDir);
+		}
+		if (manifest != null) {
+			updateManifest(entries);
+		}
+		if (journal != null) {
+			journal.finish();
+		}
+	}
+
+	/**
+	 * Deletes files for entries that left the archive, then records the
+	 * archive's current entries. A recorded name that would resolve outside
+	 * outputDir is dropped without deleting anything, and so is a blob when
+	 * content-addressed: the blob store is shared with attachments the user
+	 * added since, and TouchDB's compaction removes blobs nothing refers to.
+	 */
+	private void updateManifest(List<ZipEntry> entries) throws IOException {
+		Set<String> current = new HashSet<String>();
+		for (ZipEntry entry : entries) {
+			current.add(entry.getName());
+		}
+		for (String name : new ArrayList<String>(manifest.names())) {
+			if (!current.contains(name)) {
+				manifest.remove(name);
+				if (isBlob(name)) {
+					continue;
+				}
+				File stale;
+				try {
+					stale = outputFile(name);
+				} catch (IOException e) {
+					Log.w(TAG, "Ignoring " + name + " in " + manifest.getFile(), e);
+					continue;
+				}
+				if (stale.isFile() && !stale.delete()) {
+					Log.w(TAG, "Can not delete " + stale);
+				}
+			}
+		}
+		for (ZipEntry entry : entries) {
+			if (!entry.isDirectory()) {
+				manifest.put(entry);
+			}
+		}
+		manifest.save();
+	}
+
+	/**
+	 * @return where the entry called name goes in outputDir
+	 * @throws IOException if name would put it outside outputDir
+	 */
+	private File outputFile(String name) throws IOException {
+		if (canonicalOutputDir == null) {
+			canonicalOutputDir = outputDir.getCanonicalPath() + File.separator;
+		}
+		File file = new File(outputDir, name);
+		// Refuse entries like "../../shared_prefs/x" that would escape outputDir.
+		String path = file.getCanonicalPath();
+		if (!path.startsWith(canonicalOutputDir) && !(path + File.separator).equals(canonicalOutputDir)) {
+			throw new IOException("Entry outside of " + outputDir + ": " + name);
+		}
+		return file;
+	}
+
+	/**
+	 * @return where entry is written: its place in the staging dir when
+	 *         journaling, its output file otherwise
+	 */
+	private File targetFile(ZipEntry entry) throws IOException {
+		File file = outputFile(entry.getName());
+		return journal == null ? file : new File(journal.getStagingDir(), entry.getName());
+	}
+
+	private void extractEntry(EntrySource source, ZipEntry entry) throws IOException {
+		InputStream in = source.open(entry);
+		try {
+			copy(in, targetFile(entry));
+		} finally {
+			in.close();
+		}
+		entryWritten(entry);
+	}
+
+	private void entryWritten(ZipEntry entry) throws IOException {
+		if (journal != null) {
+			journal.record(entry);
+		}
+	}
+
+	private static void copy(InputStream in, File outputFile) throws IOException {
+		byte[] buffer = buffers.get();
+		OutputStream out = new FileOutputStream(outputFile);
+		try {
+			int count;
+			while ((count = in.read(buffer)) != -1) {
+				out.write(buffer, 0, count);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Reads an entry to its end, comparing it with existing, and writes it to
+	 * target from the first byte that differs on. When target is existing the
+	 * bytes before that are left alone; otherwise they are copied over.
+	 * @return false if existing already held exactly the entry and nothing was written
+	 */
+	private static boolean update(InputStream in, File existing, File target) throws IOException {
+		byte[] buffer = buffers.get();
+		byte[] previous = compareBuffers.get();
+		long same = 0;
+		int count;
+		int match = 0;
+		InputStream old = new FileInputStream(existing);
+		try {
+			while ((count = in.read(buffer)) != -1) {
+				int previousCount = readFully(old, previous, count);
+				match = 0;
+				while (match < previousCount && buffer[match] == previous[match]) {
+					match++;
+				}
+				same += match;
+				if (match < count) {
+					break;
+				}
+			}
+		} finally {
+			old.close();
+		}
+		if (count == -1 && existing.length() == same) {
+			return false;
+		}
+		RandomAccessFile out = new RandomAccessFile(target, "rw");
+		try {
+			if (target.equals(existing)) {
+				out.seek(same);
+			} else {
+				copyPrefix(existing, out, same);
+			}
+			if (count != -1) {
+				out.write(buffer, match, count - match);
+				while ((count = in.read(buffer)) != -1) {
+					out.write(buffer, 0, count);
+				}
+			}
+			out.setLength(out.getFilePointer());
+		} finally {
+			out.close();
+		}
+		return true;
+	}
+
+	private static void copyPrefix(File file, RandomAccessFile out, long length) throws IOException {
+		byte[] buffer = compareBuffers.get();
+		InputStream in = new FileInputStream(file);
+		try {
+			while (length > 0) {
+				int count = readFully(in, buffer, (int) Math.min(buffer.length, length));
+				if (count == 0) {
+					throw new IOException(file + " changed while it was read");
+				}
+				out.write(buffer, 0, count);
+				length -= count;
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static int readFully(InputStream in, byte[] buffer, int length) throws IOException {
+		int total = 0;
+		int count;
+		while (total < length && (count = in.read(buffer, total, length - total)) != -1) {
+			total += count;
+		}
+		return total;
+	}
+
+	private static void createDir(File dir) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+			throw new IOException("Can not create dir " + dir);
+		}
+	}
+
+	private void entryExtracted(ZipEntry entry, int index, int total) {
+		if (listener != null) {
+			listener.onEntryExtracted(entry, index, total);
+		}
+	}
+
+	/**
+	 * Opens entries of a ZipFile or a {@link MappedZip}; safe to call from
+	 * several threads at once.
+	 */
+	private interface EntrySource {
+		InputStream open(ZipEntry entry) throws IOException;
+	}
+
+	private class EntryTask implements Callable<ZipEntry> {
+		private final EntrySource source;
+		private final ZipEntry entry;
+
+		EntryTask(EntrySource source, ZipEntry entry) {
+			this.source = source;
+			this.entry = entry;
+		}
+
+		public ZipEntry call() throws IOException {
+			extractEntry(source, entry);
+			return entry;
+		}
+	}
+}
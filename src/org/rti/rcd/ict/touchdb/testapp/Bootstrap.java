@@ -0,0 +1,424 @@
+package org.rti.rcd.ict.touchdb.testapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.rti.rcd.ict.lgug.utils.AttachmentCache;
+import org.rti.rcd.ict.lgug.utils.BlobVerifier;
+import org.rti.rcd.ict.lgug.utils.CouchClient;
+import org.rti.rcd.ict.lgug.utils.ExtractionManifest;
+import org.rti.rcd.ict.lgug.utils.InstallJournal;
+import org.rti.rcd.ict.lgug.utils.StartupTracer;
+import org.rti.rcd.ict.lgug.utils.ZipExtractor;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import com.couchbase.touchdb.TDDatabase;
+import com.couchbase.touchdb.TDServer;
+import com.couchbase.touchdb.TDView;
+import com.couchbase.touchdb.TDViewCompiler;
+import com.couchbase.touchdb.TDViewMapBlock;
+import com.couchbase.touchdb.TDViewReduceBlock;
+import com.couchbase.touchdb.javascript.TDJavaScriptViewCompiler;
+import com.couchbase.touchdb.listener.TDListener;
+
+/**
+ * Brings the app up off the UI thread as a set of stages with explicit
+ * dependencies:
+ *
+ * <pre>
+ * PROPERTIES -+-> SERVER ------+-> LISTENER -+-----------------> WARM_UP
+ *             +-> DATABASE ----+             +-+-> DESIGN_DOC
+ *             +-> ATTACHMENTS -----------------+-> VERIFY_BLOBS
+ * </pre>
+ *
+ * The database and the attachments are extracted side by side, and the
+ * listener starts as soon as the database file is in place, without waiting
+ * for the attachments. DESIGN_DOC completes once the couchapp's design
+ * document can be read and the blobs of its pages are on disk - the point
+ * at which the WebView can load.
+ *
+ * WARM_UP then primes the database and compiles and indexes the design
+ * document's views at background priority (see {@link WarmUp}); its
+ * completion means the app is hot. It can be stopped with
+ * {@link #cancelWarmUp}. Once it has compiled a view, queries no longer
+ * compile it, so first_view_query is only traced for a query that gets there
+ * before the warm-up does.
+ *
+ * Attachments are extracted into the database's blob store. A blob already
+ * on disk with the size the archive gives it is not rewritten, as its name
+ * fixes its content; with verify_blobs=true in coconut.properties
+ * VERIFY_BLOBS re-hashes them and deletes any that are corrupt.
+ *
+ * Completion and failure of each stage are posted to an {@link Observer} on the
+ * UI thread. A stage whose dependency failed is skipped without an event.
+ *
+ * Every stage, each extraction, TDListener.start and the first view query are
+ * timed on a {@link StartupTracer}. Its ring buffer of recent launches, in
+ * filesDir, is written once WARM_UP is over - done, failed, skipped or
+ * cancelled - so that saving it does not slow down the launch it measures.
+ * Phases that come in later, such as page_loaded, are saved as they come.
+ * From Honeycomb on, the WebView can read the buffer, this launch included,
+ * as JSON from http://0.0.0.0:&lt;port&gt;/_startup_trace, which
+ * CoconutActivity's LocalResourceLoader answers in-process.
+ */
+public class Bootstrap {
+
+	public static final String TAG = "Bootstrap";
+
+	private static final int ATTACHMENT_CACHE_BYTES = AttachmentCache.DEFAULT_MAX_BYTES;
+
+	public enum Stage {
+		PROPERTIES, SERVER, DATABASE, ATTACHMENTS, LISTENER, DESIGN_DOC, WARM_UP, VERIFY_BLOBS
+	}
+
+	public interface Observer {
+		void onStageComplete(Stage stage);
+		void onStageFailed(Stage stage, Throwable error);
+	}
+
+	private final Context context;
+	private final int port;
+	private final StartupTracer tracer;
+	private final Observer observer;
+	private final Handler uiHandler = new Handler(Looper.getMainLooper());
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+	private final ThreadLocal<Boolean> warmingUp = new ThreadLocal<Boolean>();
+
+	private volatile Properties properties;
+	private volatile TDServer server;
+	private volatile TDListener listener;
+	private volatile AttachmentCache attachmentCache;
+	private volatile Future<?> warmUp;
+	private volatile boolean traceSaved;
+
+	public Bootstrap(Context context, int port, StartupTracer tracer, Observer observer) {
+		this.context = context;
+		this.port = port;
+		this.tracer = tracer;
+		this.observer = observer;
+	}
+
+	public void start() {
+		final Future<?> props = stage(Stage.PROPERTIES, new Callable<Object>() {
+			public Object call() throws Exception {
+				properties = loadProperties();
+				return properties;
+			}
+		});
+		final Future<?> serverReady = stage(Stage.SERVER, new Callable<Object>() {
+			public Object call() throws Exception {
+				server = new TDServer(getFilesDir().getAbsolutePath());
+				TDView.setCompiler(new TracingViewCompiler(new TDJavaScriptViewCompiler()));
+				return server;
+			}
+		}, props);
+		final Future<?> database = stage(Stage.DATABASE, new Callable<Object>() {
+			public Object call() throws Exception {
+				// From the first launch on the database holds user data, so the
+				// seed only ever goes into a missing file, never over one.
+				if (new File(getFilesDir(), getAppDb() + ".touchdb").exists()) {
+					return 0;
+				}
+				return installAsset(getAppDb() + ".touchdb.zip", false);
+			}
+		}, props);
+		final Future<?> attachments = stage(Stage.ATTACHMENTS, new Callable<Object>() {
+			public Object call() throws Exception {
+				return installAsset(getAppDb() + ".zip", true);
+			}
+		}, props);
+		final Future<?> listening = stage(Stage.LISTENER, new Callable<Object>() {
+			public Object call() throws Exception {
+				// Open the database before any request thread can race us to it.
+				TDDatabase db = server.getDatabaseNamed(getAppDb());
+				if (db == null || !db.open()) {
+					throw new IOException("Unable to open " + getAppDb());
+				}
+				listener = new TDListener(server, port);
+				long start = tracer.start();
+				listener.start();
+				tracer.end("listener_start", start);
+				// The app's own requests to the listener stay in-process.
+				attachmentCache = new AttachmentCache(server, ATTACHMENT_CACHE_BYTES);
+				CouchClient.getDefault().setLocalServer(server, port).setAttachmentCache(attachmentCache);
+				return listener;
+			}
+		}, serverReady, database);
+		stage(Stage.DESIGN_DOC, new Callable<Object>() {
+			public Object call() throws Exception {
+				String docId = getDesignDocId();
+				if (docId != null) {
+					TDDatabase db = server.getDatabaseNamed(getAppDb());
+					if (db.getDocumentWithIDAndRev(docId, null,
+							EnumSet.noneOf(TDDatabase.TDContentOptions.class)) == null) {
+						throw new IOException(docId + " is not readable in " + getAppDb());
+					}
+				}
+				return docId;
+			}
+		}, listening, attachments);
+		warmUp = stage(Stage.WARM_UP, new Callable<Object>() {
+			public Object call() throws Exception {
+				String docId = getDesignDocId();
+				if (docId == null) {
+					return 0;
+				}
+				int tid = Process.myTid();
+				int priority = Process.getThreadPriority(tid);
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				warmingUp.set(Boolean.TRUE);
+				try {
+					int views = new WarmUp(server.getDatabaseNamed(getAppDb()), docId).run();
+					Log.d(TAG, "Warmed up " + views + " views of " + docId);
+					return views;
+				} finally {
+					warmingUp.remove();
+					// Pool threads are reused; do not leave this one at background priority.
+					Process.setThreadPriority(priority);
+				}
+			}
+		}, listening);
+		saveTraceAfter(warmUp);
+		stage(Stage.VERIFY_BLOBS, new Callable<Object>() {
+			public Object call() throws Exception {
+				if (!Boolean.parseBoolean(properties.getProperty("verify_blobs"))) {
+					return null;
+				}
+				String store = server.getDatabaseNamed(getAppDb()).getAttachmentStorePath();
+				List<String> corrupt = new BlobVerifier(new File(store)).setDeleteCorrupt(true).verify();
+				if (!corrupt.isEmpty()) {
+					Log.e(TAG, "Deleted " + corrupt.size() + " corrupt blobs: " + corrupt);
+				}
+				return corrupt;
+			}
+		}, listening, attachments);
+	}
+
+	/**
+	 * Stops any stage that has not finished. Stages already complete stay up.
+	 */
+	public void cancel() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Stops the warm-up after the step it is in, e.g. when the user starts
+	 * working and it should not compete for the database.
+	 */
+	public void cancelWarmUp() {
+		Future<?> pending = warmUp;
+		if (pending != null) {
+			pending.cancel(true);
+		}
+	}
+
+	public Properties getProperties() {
+		return properties;
+	}
+
+	public TDServer getServer() {
+		return server;
+	}
+
+	public TDListener getListener() {
+		return listener;
+	}
+
+	/**
+	 * @return the design document attachments held in memory; null until LISTENER completes
+	 */
+	public AttachmentCache getAttachmentCache() {
+		return attachmentCache;
+	}
+
+	public StartupTracer getTracer() {
+		return tracer;
+	}
+
+	/**
+	 * Saves a phase recorded after the startup trace was first written, e.g.
+	 * page_loaded. Before then it does nothing: the phase goes out with the
+	 * first save.
+	 */
+	public void saveTrace() {
+		if (traceSaved) {
+			persistTrace();
+		}
+	}
+
+	/**
+	 * Writes the startup trace for the first time once pending is over,
+	 * however it ended.
+	 */
+	private void saveTraceAfter(final Future<?> pending) {
+		executor.submit(new Runnable() {
+			public void run() {
+				try {
+					pending.get();
+				} catch (InterruptedException e) {
+					// Bootstrap cancelled; nothing to save.
+					return;
+				} catch (Exception e) {
+					// Failed, skipped or cancelled: the launch is over all the same.
+				}
+				traceSaved = true;
+				persistTrace();
+			}
+		});
+	}
+
+	private void persistTrace() {
+		try {
+			executor.submit(new Runnable() {
+				public void run() {
+					try {
+						tracer.persist();
+					} catch (IOException e) {
+						Log.w(TAG, "Unable to save the startup trace", e);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			Log.v(TAG, "Bootstrap cancelled; startup trace not saved.");
+		}
+	}
+
+	private Future<?> stage(final Stage stage, final Callable<Object> work, final Future<?>... dependencies) {
+		return executor.submit(new Callable<Object>() {
+			public Object call() throws Exception {
+				for (Future<?> dependency : dependencies) {
+					try {
+						dependency.get();
+					} catch (ExecutionException e) {
+						throw new DependencyFailedException();
+					}
+				}
+				Log.d(TAG, "Starting " + stage);
+				long start = tracer.start();
+				try {
+					Object result = work.call();
+					post(stage, null);
+					return result;
+				} catch (Exception e) {
+					Log.e(TAG, stage + " failed", e);
+					post(stage, e);
+					throw e;
+				} finally {
+					tracer.end(stage.name().toLowerCase(Locale.US), start);
+				}
+			}
+		});
+	}
+
+	private void post(final Stage stage, final Throwable error) {
+		uiHandler.post(new Runnable() {
+			public void run() {
+				if (error == null) {
+					observer.onStageComplete(stage);
+				} else {
+					observer.onStageFailed(stage, error);
+				}
+			}
+		});
+	}
+
+	private Properties loadProperties() throws IOException {
+		Properties loaded = new Properties();
+		InputStream rawResource = context.getResources().openRawResource(R.raw.coconut);
+		try {
+			loaded.load(rawResource);
+		} finally {
+			rawResource.close();
+		}
+		Log.d(TAG, "properties: " + loaded);
+		return loaded;
+	}
+
+	/**
+	 * Installs an archive from the assets dir into filesDir. An install cut
+	 * short by the app being killed resumes where it stopped on the next
+	 * launch.
+	 * @param incremental true to keep a manifest of what was installed, so a
+	 * later APK with an updated archive only rewrites the entries that changed
+	 * and deletes those it dropped; blobs it dropped are left to compaction
+	 * @return the number of files written
+	 */
+	private int installAsset(String asset, boolean incremental) throws IOException {
+		File filesDir = getFilesDir();
+		long start = tracer.start();
+		int written = new ZipExtractor(filesDir)
+			.setManifest(incremental ? ExtractionManifest.load(new File(filesDir, "." + asset + ".manifest")) : null)
+			.setJournal(InstallJournal.open(filesDir, asset))
+			.setContentAddressed(true)
+			.extractAsset(context.getAssets(), asset);
+		tracer.end("extract:" + asset, start);
+		Log.d(TAG, "Completed extraction of " + asset + ": " + written + " files written.");
+		return written;
+	}
+
+	private File getFilesDir() {
+		return context.getFilesDir();
+	}
+
+	private String getAppDb() {
+		return properties.getProperty("app_db");
+	}
+
+	/**
+	 * @return "_design/name" from couchAppInstanceUrl (db/_design/name/...), or null
+	 */
+	private String getDesignDocId() {
+		String[] path = properties.getProperty("couchAppInstanceUrl", "").split("/");
+		if (path.length >= 3 && "_design".equals(path[1])) {
+			return path[1] + "/" + path[2];
+		}
+		return null;
+	}
+
+	/**
+	 * Marks the first view query. TouchDB compiles a design document's view the
+	 * first time it is queried in a process, so the first compile is the start
+	 * of the first query.
+	 */
+	private class TracingViewCompiler implements TDViewCompiler {
+		private final TDViewCompiler compiler;
+
+		TracingViewCompiler(TDViewCompiler compiler) {
+			this.compiler = compiler;
+		}
+
+		public TDViewMapBlock compileMapFunction(String source, String language) {
+			if (warmingUp.get() == null && tracer.mark("first_view_query")) {
+				saveTrace();
+			}
+			return compiler.compileMapFunction(source, language);
+		}
+
+		public TDViewReduceBlock compileReduceFunction(String source, String language) {
+			return compiler.compileReduceFunction(source, language);
+		}
+	}
+
+	/**
+	 * Marks a stage skipped because something it depends on failed.
+	 */
+	private static class DependencyFailedException extends Exception {
+		private static final long serialVersionUID = 1L;
+	}
+}
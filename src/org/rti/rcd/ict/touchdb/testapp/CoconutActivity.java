@@ -1,25 +1,19 @@
 package org.rti.rcd.ict.touchdb.testapp;
 
 import java.io.File;
-import java.io.IOException;
-import java.io.InputStream;
-import java.util.Calendar;
-import java.util.Date;
-import java.util.GregorianCalendar;
-import java.util.Properties;
 
-import org.rti.rcd.ict.lgug.utils.CoconutUtils;
-import org.rti.rcd.ict.lgug.utils.UnZip;
+import org.rti.rcd.ict.lgug.utils.LocalResourceLoader;
+import org.rti.rcd.ict.lgug.utils.StartupTracer;
 
 import android.app.Activity;
 import android.app.ProgressDialog;
 import android.content.Context;
 import android.content.Intent;
-import android.content.res.Resources;
+import android.content.pm.PackageManager;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.Message;
 import android.util.Log;
 import android.view.Gravity;
 import android.view.LayoutInflater;
@@ -27,6 +21,7 @@ import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewGroup;
 import android.webkit.WebChromeClient;
+import android.webkit.WebResourceResponse;
 import android.webkit.WebSettings;
 import android.webkit.WebView;
 import android.webkit.WebViewClient;
@@ -34,13 +29,10 @@ import android.widget.ImageView;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import com.couchbase.touchdb.TDServer;
-import com.couchbase.touchdb.TDView;
-import com.couchbase.touchdb.javascript.TDJavaScriptViewCompiler;
 import com.couchbase.touchdb.listener.TDListener;
 
 
-public class CoconutActivity extends Activity {
+public class CoconutActivity extends Activity implements Bootstrap.Observer {
 
     public static final String TAG = "CoconutActivity";
     private TDListener listener;
@@ -49,66 +41,35 @@ public class CoconutActivity extends Activity {
     private ProgressDialog progressDialog;
     private Handler uiHandler;
     private ProgressDialog installProgress;
-    static Handler myHandler;
     private String couchAppUrl;
-    // setup clock
-    Calendar cal = null;
-    Date starttime = null;
-    long long_starttime = 0;
+    private String url;
+    private Bootstrap bootstrap;
+    private StartupTracer tracer;
+    private int port;
+    private volatile LocalResourceLoader resourceLoader;
 
     /** Called when the activity is first created. */
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        tracer = new StartupTracer(new File(getFilesDir(), "startup-trace.json"),
+        		StartupTracer.DEFAULT_CAPACITY, getVersionName());
         //String couchAppUrl = "/";
-        //stopwatch_start();
-        String filesDir = getFilesDir().getAbsolutePath();
-		
-	    Properties properties = new Properties();
-
-    	try {
-    		InputStream rawResource = getResources().openRawResource(R.raw.coconut);
-    		properties.load(rawResource);
-    		System.out.println("The properties are now loaded");
-    		System.out.println("properties: " + properties);
-    	} catch (Resources.NotFoundException e) {
-    		System.err.println("Did not find raw resource: " + e);
-    	} catch (IOException e) {
-    		System.err.println("Failed to open microlog property file");
-    	}
-    	
         String ipAddress = "0.0.0.0";
         Log.d(TAG, ipAddress);
 		String host = ipAddress;
-		int port = 8888;
-		String url = "http://" + host + ":" + Integer.toString(port) + "/";
-		this.setCouchAppUrl(url + properties.getProperty("couchAppInstanceUrl"));
-		
-        TDServer server;
-        try {
-            server = new TDServer(filesDir);
-            
-            //String ipAddress = IPUtils.getLocalIpAddress();
-            //listener = new TDListener(server, 8888, ipAddress);
-            listener = new TDListener(server, 8888);
-            listener.start();
-    		//String host = "localhost";
-
-    		//couchAppUrl = url + "coconut-emas/_design/coconut/index.html";
-    		//couchAppUrl = url + "coconut-emas/doc1/";
-    		
-    		/*TDDatabase db = server.getExistingDatabaseNamed("coconut-emas");
-    		if(db == null) {
-                String couchAppDoc = createTestDatabase(server);
-                couchAppUrl = url + couchAppDoc;
-    		}*/
-            
-            TDView.setCompiler(new TDJavaScriptViewCompiler());
-
-        } catch (IOException e) {
-            Log.e(TAG, "Unable to create TDServer", e);
-        }
-        
+		port = 8888;
+		url = "http://" + host + ":" + Integer.toString(port) + "/";
+
+		//String ipAddress = IPUtils.getLocalIpAddress();
+		//listener = new TDListener(server, 8888, ipAddress);
+
+		/*TDDatabase db = server.getExistingDatabaseNamed("coconut-emas");
+		if(db == null) {
+            String couchAppDoc = createTestDatabase(server);
+            couchAppUrl = url + couchAppDoc;
+		}*/
+
         final Activity activity = this;
         webView = new WebView(CoconutActivity.this);
         uiHandler = new Handler();
@@ -138,25 +99,22 @@ public class CoconutActivity extends Activity {
 				progressDialog.incrementProgressBy(progress);
 				Log.d(TAG, "Progress: " + progress);
 
+				if(progress == 100 && tracer.mark("page_loaded")) {
+					bootstrap.saveTrace();
+				}
 				if(progress == 100 && progressDialog.isShowing()) {
 					Log.d(TAG, "Progress: DONE! " + progress);
-					 // Stop clock and calculate time elapsed
-			        //stopwatchFinish();
 					progressDialog.dismiss();
 				}
             }
-
-			public void stopwatchFinish() {
-				Calendar cal2 = new GregorianCalendar();
-				Date endtime = cal2.getTime();
-				long long_endtime = endtime.getTime();
-				long difference = (long_endtime - long_starttime);
-				float diffSecs = difference / 1000;
-				Log.v(TAG,"********  Time to open app: " + difference + " or " + diffSecs + " seconds ******");
-			}
         });
-		webView.setWebViewClient(new CustomWebViewClient());		
+		// From Honeycomb on, the couchapp's own files skip the listener.
+		webView.setWebViewClient(Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+				? new InterceptingWebViewClient() : new CustomWebViewClient());
 		webView.getSettings().setJavaScriptEnabled(true);
+		// Nothing the WebView loads comes with an ETag or Cache-Control: the
+		// listener does not send them and WebResourceResponse can not carry
+		// headers before Lollipop. Without them it has nothing to revalidate.
 		webView.getSettings().setCacheMode(WebSettings.LOAD_NO_CACHE);
 		webView.getSettings().setDomStorageEnabled(true);
 
@@ -179,46 +137,79 @@ public class CoconutActivity extends Activity {
 	    });
         setContentView(R.layout.main);
 		setContentView(webView);
-    	String appDb = properties.getProperty("app_db");
-	    File destination = new File(filesDir + File.separator + appDb + ".touchdb");
-	    Log.d(TAG, "Checking for touchdb at " + filesDir + File.separator + appDb + ".touchdb");
-	    if (!destination.exists()) {
-	    	Log.d(TAG, "Touchdb does not exist. Unzipping files.");
-	    	// must be in the assets directory
-	    	//installProgress =  ProgressDialog.show(CoconutActivity.this, "", "Installing database. Please wait...", true);
-	    	try {
-	    		// This is the touchdb
-	    		//CoconutUtils.unZipFromAssets(this.getApplicationContext(), appDb + ".touchdb.zip", filesDir);
-	        	String destinationFilename = CoconutUtils.extractFromAssets(this.getApplicationContext(), appDb + ".touchdb.zip", filesDir);	
-	        	File destFile = new File(destinationFilename);
-	    		unzipFile(destFile);
-	    		// These are the attachments
-	    		//CoconutUtils.unZipFromAssets(this.getApplicationContext(), appDb + ".zip", filesDir);
-	    		destinationFilename = CoconutUtils.extractFromAssets(this.getApplicationContext(), appDb + ".zip", filesDir);	
-	        	destFile = new File(destinationFilename);
-	    		unzipFile(destFile);
-                loadWebview();
-			} catch (Exception e) {
-				e.printStackTrace();
-				String errorMessage = "There was an error extracting the database.";
-				displayLargeMessage(errorMessage, "big");
-				Log.d(TAG, errorMessage);
-				//installProgress.setMessage("There was an error - unable to find database zip.");
-				progressDialog.setMessage(errorMessage);
-				this.setCouchAppUrl("/");
-			    //installProgress.dismiss();
-			}
-	    } else {
-	    	Log.d(TAG, "Touchdb exists. Loading WebView.");
-	    	loadWebview();
-	    }
+
+		// Properties, TDServer, listener and extraction all run off the UI thread;
+		// see onStageComplete for what happens as each stage finishes.
+		bootstrap = new Bootstrap(getApplicationContext(), port, tracer, this);
+		bootstrap.start();
     }
 
-	public void stopwatch_start() {
-		cal = new GregorianCalendar();
-		starttime = cal.getTime();
-        long_starttime = starttime.getTime();
-    	Log.v(TAG, "Start page view" + starttime.toString());
+	@Override
+	protected void onPause() {
+		// Leave the database to whatever is coming to the foreground.
+		bootstrap.cancelWarmUp();
+		super.onPause();
+	}
+
+	@Override
+	protected void onDestroy() {
+		bootstrap.cancel();
+		super.onDestroy();
+	}
+
+	public void onStageComplete(Bootstrap.Stage stage) {
+		Log.d(TAG, "Bootstrap: " + stage + " complete.");
+		switch (stage) {
+		case PROPERTIES:
+			this.setCouchAppUrl(url + bootstrap.getProperties().getProperty("couchAppInstanceUrl"));
+			break;
+		case LISTENER:
+			listener = bootstrap.getListener();
+			resourceLoader = new LocalResourceLoader(bootstrap.getServer(), port, bootstrap.getAttachmentCache(), tracer);
+			break;
+		case DESIGN_DOC:
+			loadWebview();
+			break;
+		case WARM_UP:
+			Log.d(TAG, "App is hot.");
+			break;
+		default:
+			break;
+		}
+	}
+
+	public void onStageFailed(Bootstrap.Stage stage, Throwable error) {
+		if (stage == Bootstrap.Stage.VERIFY_BLOBS || stage == Bootstrap.Stage.WARM_UP) {
+			// The app is already up; these only make it faster or check it.
+			Log.w(TAG, "Bootstrap: " + stage + " failed", error);
+			return;
+		}
+		String errorMessage;
+		switch (stage) {
+		case DATABASE:
+		case ATTACHMENTS:
+			errorMessage = "There was an error extracting the database.";
+			break;
+		case SERVER:
+			errorMessage = "Unable to create TDServer.";
+			break;
+		default:
+			errorMessage = "There was an error starting TouchDB (" + stage + ").";
+			break;
+		}
+		displayLargeMessage(errorMessage, "big");
+		Log.d(TAG, errorMessage);
+		//installProgress.setMessage("There was an error - unable to find database zip.");
+		progressDialog.setMessage(errorMessage);
+		this.setCouchAppUrl("/");
+	}
+
+	private String getVersionName() {
+		try {
+			return getPackageManager().getPackageInfo(getPackageName(), 0).versionName;
+		} catch (PackageManager.NameNotFoundException e) {
+			return null;
+		}
 	}
 
 	private void loadWebview() {
@@ -241,6 +232,24 @@ public class CoconutActivity extends Activity {
 			return true;
 		}
 	}
+
+	/**
+	 * Loads design document attachments in-process through a
+	 * LocalResourceLoader; everything else, and anything it can not find,
+	 * still goes to the listener. Only created from Honeycomb on, where
+	 * WebViewClient has shouldInterceptRequest.
+	 */
+	private class InterceptingWebViewClient extends CustomWebViewClient {
+		@Override
+		public WebResourceResponse shouldInterceptRequest(WebView view, String url) {
+			LocalResourceLoader loader = resourceLoader;
+			LocalResourceLoader.Resource resource = loader == null ? null : loader.load(url);
+			if (resource == null) {
+				return super.shouldInterceptRequest(view, url);
+			}
+			return new WebResourceResponse(resource.getMimeType(), resource.getEncoding(), resource.getData());
+		}
+	}
 	
 	public void displayMessage( String message ) {
 		//uiHandler.post( new AddMessageTask( message ) );
@@ -269,47 +278,6 @@ public class CoconutActivity extends Activity {
 		//toast.show();
 	}
 	
-	public void unzipFile(File zipfile) {
-		//installProgress = ProgressDialog.show(CoconutActivity.this, "Extract Zip","Extracting Files...", false, false);
-		File zipFile = zipfile;
-		displayLargeMessage("Extracting: " + zipfile, "medium");
-		String directory = null;
-		directory = zipFile.getParent();
-		directory = directory + "/";
-		myHandler = new Handler() {
-
-			@Override
-			public void handleMessage(Message msg) {
-				// process incoming messages here
-				switch (msg.what) {
-				case 0:
-					// update progress bar
-					//installProgress.setMessage("" + (String) msg.obj);
-					Log.d(TAG,  (String) msg.obj);
-					break;
-				case 1:
-					//installProgress.cancel();
-					//Toast toast = Toast.makeText(getApplicationContext(), "Zip extracted successfully", Toast.LENGTH_SHORT);
-					displayLargeMessage(msg.obj + ": Complete.", "medium");
-					//toast.show();
-					//provider.refresh();
-					Log.d(TAG, msg.obj + ":Zip extracted successfully");
-					break;
-				case 2:
-					//installProgress.cancel();
-					break;
-				}
-				super.handleMessage(msg);
-			}
-
-		};
-		/*Thread workthread = new Thread(new UnZip(myHandler, zipFile, directory));
-	    workthread.start();*/
-		UnZip unzip = new UnZip(myHandler, zipFile, directory);
-		unzip.run();
-		Log.d(TAG, "Completed extraction.");
-	}
-
 	public String getCouchAppUrl() {
 		return couchAppUrl;
 	}
@@ -0,0 +1,129 @@
+package org.rti.rcd.ict.touchdb.testapp;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.EnumSet;
+import java.util.Map;
+
+import android.util.Log;
+
+import com.couchbase.touchdb.TDDatabase;
+import com.couchbase.touchdb.TDRevision;
+import com.couchbase.touchdb.TDStatus;
+import com.couchbase.touchdb.TDView;
+
+/**
+ * Does ahead of time what the first view query would otherwise pay for: reads
+ * the hot tables of the database into SQLite's page cache, compiles every
+ * view of the design document, and brings stale indexes up to date.
+ *
+ * Meant to run on a background-priority thread once the listener is up. It
+ * stops between steps when its thread is interrupted.
+ */
+class WarmUp {
+
+	public static final String TAG = "WarmUp";
+
+	private final TDDatabase db;
+	private final String designDocId;
+
+	/**
+	 * @param designDocId e.g. "_design/coconut"
+	 */
+	WarmUp(TDDatabase db, String designDocId) {
+		this.db = db;
+		this.designDocId = designDocId;
+	}
+
+	/**
+	 * @return the number of views compiled
+	 */
+	@SuppressWarnings("unchecked")
+	int run() throws InterruptedException {
+		primePageCache();
+		checkInterrupted();
+		TDRevision designDoc = db.getDocumentWithIDAndRev(designDocId, null,
+				EnumSet.noneOf(TDDatabase.TDContentOptions.class));
+		if (designDoc == null) {
+			Log.w(TAG, designDocId + " not found; no views to warm up.");
+			return 0;
+		}
+		Map<String, Object> properties = designDoc.getProperties();
+		Object views = properties.get("views");
+		if (!(views instanceof Map)) {
+			return 0;
+		}
+		String designDocName = designDocId.substring(designDocId.indexOf('/') + 1);
+		int compiled = 0;
+		for (Map.Entry<?, ?> entry : ((Map<?, ?>) views).entrySet()) {
+			checkInterrupted();
+			if (!(entry.getValue() instanceof Map)) {
+				continue;
+			}
+			// Named the way TDRouter names views: "<design doc>/<view>".
+			String viewName = designDocName + "/" + entry.getKey();
+			if (warmView(viewName, (Map<String, Object>) entry.getValue())) {
+				compiled++;
+			}
+		}
+		return compiled;
+	}
+
+	/**
+	 * Compiles the view the same way TDRouter does on a query, so the router
+	 * finds it compiled and the index version matches.
+	 */
+	private boolean warmView(String viewName, Map<String, Object> definition) {
+		TDView view = db.getViewNamed(viewName);
+		if (!view.compileFromProperties(definition)) {
+			Log.w(TAG, "Unable to compile " + viewName);
+			return false;
+		}
+		long start = System.nanoTime();
+		TDStatus status = view.updateIndex();
+		if (status != null && !status.isSuccessful()) {
+			Log.w(TAG, "Unable to update the index of " + viewName + ": " + status.getCode());
+		} else {
+			Log.v(TAG, viewName + " indexed in " + (System.nanoTime() - start) / 1000000 + " ms");
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the database file once to get it into the OS cache, then asks
+	 * TDDatabase for its document count and last sequence, which brings the
+	 * docs and revs pages into the page cache of the connection the
+	 * listener's requests use.
+	 */
+	private void primePageCache() {
+		readFile(db.getPath());
+		try {
+			Log.v(TAG, db.getDocumentCount() + " docs, last sequence " + db.getLastSequence());
+		} catch (RuntimeException e) {
+			Log.w(TAG, "Unable to prime " + db.getName(), e);
+		}
+	}
+
+	private static void readFile(String path) {
+		byte[] buffer = new byte[64 * 1024];
+		try {
+			InputStream in = new FileInputStream(path);
+			try {
+				while (in.read(buffer) != -1) {
+					// Only the read matters.
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Unable to read " + path, e);
+		}
+	}
+
+	private static void checkInterrupted() throws InterruptedException {
+		if (Thread.currentThread().isInterrupted()) {
+			throw new InterruptedException("Warm-up cancelled");
+		}
+	}
+}